@@ -0,0 +1,172 @@
+package fractal.bench;
+
+import fractal.semantics.FractalEvaluator;
+import fractal.semantics.FractalState;
+import fractal.semantics.ParallelFractalEvaluator;
+import fractal.semantics.PathHash;
+import fractal.syntax.ASTProgram;
+import fractal.syntax.FractalLexer;
+import fractal.syntax.FractalParser;
+import fractal.sys.Repl;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the rate at which the evaluators draw the example fractals, across
+ * a sweep of resolutions, to give a reproducible baseline for performance
+ * work.  Each example NAME.fal is evaluated, followed by
+ * "draw NAME from O to 5X", in a fresh default state for each iteration (the
+ * definitions are bound again each time, as they would be in the Repl).
+ * Examples that do not parse are reported and skipped.
+ *
+ * By default the states only hash their paths (a PathHash is installed as the
+ * sink), so that what is measured is the evaluator rather than the storage of
+ * the path; with -keep, the path is kept, as it is for display.
+ *
+ * To build and run (from the directory above src and bench):
+ * <pre>
+ *   javac -d /tmp/bench -cp "lib/*" $(find src bench -name '*.java')
+ *   java -cp "/tmp/bench:lib/*" fractal.bench.EvaluatorBench examples
+ * </pre>
+ *
+ * @author newts
+ */
+public class EvaluatorBench {
+
+    public static void usage() {
+        String[] usageMsg = new String[]{
+            String.format("Usage: <javaexec> %s [options] [examples-dir]",
+                    EvaluatorBench.class.getName()),
+            "",
+            "  -e engines   comma separated engines to measure (recursive)",
+            "  -r res,...   the resolutions to sweep (0.1,0.03,0.01)",
+            "  -d depth     the max. depth (the engine's default)",
+            "  -w n         warm-up iterations (5)",
+            "  -n n         measured iterations (10)",
+            "  -keep        keep the path, rather than only hashing it",
+            "  -csv file    also write the results to a CSV file"
+        };
+        for (String line : usageMsg) {
+            System.out.println(line);
+        }
+    }
+
+    private static final String[] EXAMPLES = {
+        "koch", "gosper1", "gosper2", "gosper3", "gosper4"
+    };
+
+    public static void main(String[] args) throws Exception {
+        String[] engines = {"recursive"};
+        String[] resolutions = {"0.1", "0.03", "0.01"};
+        Integer depth = null;
+        int warmups = 5;
+        int iterations = 10;
+        boolean keep = false;
+        Path csv = null;
+        Path dir = Path.of("examples");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-h", "--help" -> {
+                    usage();
+                    return;
+                }
+                case "-e" -> engines = args[++i].split(",");
+                case "-r" -> resolutions = args[++i].split(",");
+                case "-d" -> depth = Integer.parseInt(args[++i]);
+                case "-w" -> warmups = Integer.parseInt(args[++i]);
+                case "-n" -> iterations = Integer.parseInt(args[++i]);
+                case "-keep" -> keep = true;
+                case "-csv" -> csv = Path.of(args[++i]);
+                default -> dir = Path.of(args[i]);
+            }
+        }
+
+        Harness harness = new Harness(warmups, iterations);
+        ArrayList<Harness.Result> results = new ArrayList<>();
+        PrintStream console = System.out;
+        console.println(Harness.TITLES);
+        for (String engine : engines) {
+            FractalEvaluator probe = Repl.mkEvaluator(engine);
+            if (probe == null) {
+                console.println("Unknown engine: " + engine);
+                continue;
+            }
+            close(probe);
+            for (String name : EXAMPLES) {
+                String source;
+                try {
+                    source = Files.readString(dir.resolve(name + ".fal"))
+                            + "\ndraw " + name + " from O to 5X\n";
+                    parse(source);
+                } catch (Exception e) {
+                    console.println(String.format("%-36s skipped: %s",
+                            engine + "/" + name, e.getMessage()));
+                    continue;
+                }
+                for (String res : resolutions) {
+                    FractalEvaluator evaluator = Repl.mkEvaluator(engine);
+                    PathHash hash = new PathHash();
+                    if (!keep) {
+                        evaluator.setSink(hash);
+                    }
+                    float resolution = Float.parseFloat(res);
+                    Integer maxDepth = depth;
+                    boolean kept = keep;
+                    ASTProgram program = parse(source);
+                    // (the evaluator prints each hash)
+                    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                    Harness.Result r;
+                    try {
+                        r = harness.measure(engine + "/" + name + "@" + res, () -> {
+                            FractalState state = evaluator.mkDefaultState();
+                            state.setResolution(resolution);
+                            if (maxDepth != null) {
+                                state.setMaxDepth(maxDepth);
+                            }
+                            program.visit(evaluator, state);
+                            return kept ? state.getSegments().size()
+                                    : hash.getSegments();
+                        });
+                    } finally {
+                        System.setOut(console);
+                        close(evaluator);
+                    }
+                    console.println(r);
+                    results.add(r);
+                }
+            }
+        }
+        if (csv != null) {
+            write(csv, results);
+        }
+    }
+
+    /**
+     * Release the threads of the given evaluator, if it has any of its own.
+     */
+    private static void close(FractalEvaluator evaluator) {
+        if (evaluator instanceof ParallelFractalEvaluator parallel) {
+            parallel.close();
+        }
+    }
+
+    private static ASTProgram parse(String source) throws Exception {
+        return (ASTProgram) new FractalParser(new FractalLexer(
+                new StringReader(source))).parse().value;
+    }
+
+    static void write(Path csv, List<Harness.Result> results) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add(Harness.HEADER);
+        for (Harness.Result r : results) {
+            lines.add(r.toCsv());
+        }
+        Files.write(csv, lines);
+    }
+}
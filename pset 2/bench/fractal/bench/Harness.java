@@ -0,0 +1,145 @@
+package fractal.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A minimal benchmark harness (the project has no build system through which
+ * to use JMH).  An operation is run for a number of warm-up iterations, whose
+ * results are discarded, so that the JIT compiler has settled, and then for a
+ * number of measured iterations, each of which is timed separately.  The
+ * memory allocated by the benchmarking thread during each iteration is
+ * measured too, where the JVM supports it.
+ *
+ * Results are reported as the median and 90th percentile of the time per
+ * iteration, the rate of work units (segments, calls) per second at the
+ * median, and the bytes allocated per unit.  Every measurement is for one
+ * thread only: the allocations of other threads (of the parallel engine's
+ * pool, for instance) are not counted.
+ *
+ * @author newts
+ */
+public class Harness {
+
+    /**
+     * One iteration of something to be measured.
+     */
+    public interface Operation {
+
+        /**
+         * Do the work of one iteration.
+         * @return The number of units of work done (e.g. segments drawn)
+         * @throws Exception if the work fails, which stops the benchmark
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * The measurements of one benchmark.
+     */
+    public static class Result {
+        final String name;
+        final long units;
+        final long medianNanos;
+        final long p90Nanos;
+        final double bytesPerUnit;
+
+        Result(String name, long units, long[] nanos, double bytesPerUnit) {
+            this.name = name;
+            this.units = units;
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            this.medianNanos = sorted[sorted.length / 2];
+            this.p90Nanos = sorted[Math.min(sorted.length - 1,
+                    (int) Math.ceil(0.9 * sorted.length) - 1)];
+            this.bytesPerUnit = bytesPerUnit;
+        }
+
+        /**
+         *
+         * @return The number of units of work done per second (at the median)
+         */
+        public double unitsPerSecond() {
+            return medianNanos == 0 ? Double.NaN : units * 1e9 / medianNanos;
+        }
+
+        /**
+         * @return This result as a row of comma separated values, in the
+         * order of HEADER
+         */
+        public String toCsv() {
+            return String.format("%s,%d,%.3f,%.3f,%.1f,%.2f", name, units,
+                    medianNanos / 1e6, p90Nanos / 1e6, unitsPerSecond(),
+                    bytesPerUnit);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-36s %12d %10.3f %10.3f %14.0f %10.2f",
+                    name, units, medianNanos / 1e6, p90Nanos / 1e6,
+                    unitsPerSecond(), bytesPerUnit);
+        }
+    }
+
+    /** The names of the columns of Result.toCsv */
+    public static final String HEADER =
+            "benchmark,units,median_ms,p90_ms,units_per_s,bytes_per_unit";
+
+    /** The titles of the columns of Result.toString */
+    public static final String TITLES = String.format(
+            "%-36s %12s %10s %10s %14s %10s", "benchmark", "units/iter",
+            "median ms", "p90 ms", "units/s", "B/unit");
+
+    /**
+     * Somewhere to put results, so that the JIT compiler cannot eliminate
+     * the work that computed them.
+     */
+    public static volatile long blackhole;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean() instanceof
+            com.sun.management.ThreadMXBean t
+            && t.isThreadAllocatedMemorySupported() ? t : null;
+
+    private final int warmups;
+    private final int iterations;
+
+    /**
+     * Create a harness.
+     * @param warmups The number of iterations run before measuring
+     * @param iterations The number of iterations measured
+     */
+    public Harness(int warmups, int iterations) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Measure the given operation.
+     * @param name The name under which to report it
+     * @param op The operation
+     * @return Its measurements
+     * @throws Exception if the operation fails
+     */
+    public Result measure(String name, Operation op) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            blackhole += op.run();
+        }
+        long[] nanos = new long[iterations];
+        long units = 0;
+        long bytes = 0;
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; i++) {
+            long before = THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            units = op.run();
+            nanos[i] = System.nanoTime() - start;
+            bytes += THREADS == null ? 0
+                    : THREADS.getThreadAllocatedBytes(id) - before;
+        }
+        blackhole += units;
+        double perUnit = THREADS == null || units == 0 ? Double.NaN
+                : (double) bytes / iterations / units;
+        return new Result(name, units, nanos, perUnit);
+    }
+}
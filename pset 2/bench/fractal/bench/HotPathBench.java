@@ -0,0 +1,123 @@
+package fractal.bench;
+
+import fractal.semantics.Environment;
+import fractal.semantics.FractalState;
+import fractal.semantics.PathHash;
+import fractal.syntax.SymbolTable;
+import fractal.values.FractalPoint;
+import fractal.values.FractalValue;
+import java.awt.geom.AffineTransform;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Microbenchmarks of the operations that the evaluators perform for every
+ * segment or expansion: deriving a state for a DRAW SELF (both freshly, and
+ * from the pool as the evaluators do), drawing a line on a state, adding a
+ * segment to a PathHash, and looking up a variable in a nested environment
+ * (both by name, and by the symbol id the parser resolves it to).
+ * Each iteration performs a batch of calls, and the unit is one call.
+ *
+ * Build as for EvaluatorBench, and run with
+ * <pre>
+ *   java -cp "/tmp/bench:lib/*" fractal.bench.HotPathBench [-csv file]
+ * </pre>
+ *
+ * @author newts
+ */
+public class HotPathBench {
+
+    /** The number of calls per iteration */
+    private static final int BATCH = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        Path csv = args.length == 2 && args[0].equals("-csv")
+                ? Path.of(args[1]) : null;
+        Harness harness = new Harness(10, 20);
+        ArrayList<Harness.Result> results = new ArrayList<>();
+        System.out.println(Harness.TITLES);
+
+        FractalState root = new FractalState(new AffineTransform(), new PathHash());
+        FractalPoint a = new FractalPoint(0.5f, 0.5f);
+        FractalPoint b = new FractalPoint(1f, 0f);
+        results.add(harness.measure("FractalState.deriveState", () -> {
+            long n = 0;
+            for (int i = 0; i < BATCH; i++) {
+                FractalState s = (i & 1) == 0 ? root.deriveState(FractalPoint.ORIGIN, a)
+                        : root.deriveState(a, b);
+                n += s.getLevel();
+            }
+            Harness.blackhole += n;
+            return BATCH;
+        }));
+        results.add(harness.measure("FractalState.derivePooledState", () -> {
+            long n = 0;
+            for (int i = 0; i < BATCH; i++) {
+                FractalState s = (i & 1) == 0
+                        ? root.derivePooledState(FractalPoint.ORIGIN, a)
+                        : root.derivePooledState(a, b);
+                n += s.getLevel();
+            }
+            Harness.blackhole += n;
+            return BATCH;
+        }));
+
+        FractalState child = root.deriveState(a, b);
+        results.add(harness.measure("FractalState.lineTo", () -> {
+            for (int i = 0; i < BATCH; i++) {
+                child.lineTo((i & 1) * 0.5f, (i & 2) * 0.25f);
+            }
+            Harness.blackhole += child.getPathHash();
+            return BATCH;
+        }));
+
+        PathHash hash = new PathHash();
+        results.add(harness.measure("PathHash.addSegment", () -> {
+            for (int i = 0; i < BATCH; i++) {
+                hash.addSegment(i, i + 1, i + 2, i + 3);
+            }
+            Harness.blackhole += hash.getHash();
+            return BATCH;
+        }));
+
+        // a global frame with a few nested local frames, as in a fractal body
+        Environment<FractalValue> env = new Environment<>();
+        String[] names = new String[32];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "v" + i;
+            env.put(names[i], new FractalPoint(i, i));
+        }
+        for (int depth = 0; depth < 3; depth++) {
+            env = new Environment<>(env);
+            env.put("p" + depth, FractalPoint.ORIGIN);
+        }
+        Environment<FractalValue> inner = env;
+        results.add(harness.measure("Environment.get", () -> {
+            long n = 0;
+            for (int i = 0; i < BATCH; i++) {
+                n += inner.get(names[i & 31]).hashCode();
+            }
+            Harness.blackhole += n;
+            return BATCH;
+        }));
+        int[] slots = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            slots[i] = SymbolTable.intern(names[i]);
+        }
+        results.add(harness.measure("Environment.get(slot)", () -> {
+            long n = 0;
+            for (int i = 0; i < BATCH; i++) {
+                n += inner.get(slots[i & 31]).hashCode();
+            }
+            Harness.blackhole += n;
+            return BATCH;
+        }));
+
+        for (Harness.Result r : results) {
+            System.out.println(r);
+        }
+        if (csv != null) {
+            EvaluatorBench.write(csv, results);
+        }
+    }
+}
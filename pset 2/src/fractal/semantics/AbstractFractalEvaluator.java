@@ -4,9 +4,11 @@
  */
 package fractal.semantics;
 
+import fractal.sys.FractalCancelledException;
 import fractal.sys.FractalException;
 import fractal.values.FractalPoint;
 import fractal.values.FractalValue;
+import java.awt.geom.AffineTransform;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,16 +22,106 @@ public abstract class AbstractFractalEvaluator
     //FractalState state;
     // FractalPoint result;  // cumulative result
     final static int MODULO = 1000000007;
+    final static int MULTIPLIER = 10; // only previous value multiplied, creating asymmetry
     
     PathHash hash;
+
+    /**
+     * The sink given to the states made by mkDefaultState (null for a fresh
+     * SegmentStore each time).
+     */
+    private SegmentSink sink;
+
+    /**
+     * The token checked before each expansion of a fractal (null if none).
+     */
+    private CancellationToken cancellation;
+
+    /**
+     * The collector of render statistics (null if none are collected).
+     */
+    private FractalRenderStats stats;
     
     public AbstractFractalEvaluator() {
         hash = new PathHash();
     }
+
+    /**
+     * Set the sink to which states subsequently made by mkDefaultState will
+     * pass what they draw.  For instance, a PathHash may be installed if only
+     * the hash of the path is required, or a TeeSink of a TileRasterizer and
+     * a SegmentFileSink to render to an image and a file, so that the path 
+     * need not be kept in memory.
+     * @param sink The sink to be installed, or null to keep the path in a 
+     * fresh SegmentStore for each state.
+     */
+    public void setSink(SegmentSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     *
+     * @return The sink installed by setSink (null if none has been)
+     */
+    public SegmentSink getSink() {
+        return sink;
+    }
     
+    /**
+     * Install a token by which renderings subsequently done by this evaluator
+     * may be stopped (see CancellationToken).  It should be set by the thread
+     * that will evaluate, before it begins.
+     * @param token The token to be checked, or null if renderings are not to
+     * be cancelled.
+     */
+    public void setCancellation(CancellationToken token) {
+        this.cancellation = token;
+    }
+
+    /**
+     *
+     * @return The token installed by setCancellation (null if none has been)
+     */
+    public CancellationToken getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Install a collector of statistics about the renders done by this
+     * evaluator (see FractalRenderStats).
+     * @param stats The collector, or null if no statistics are to be collected
+     */
+    public void setRenderStats(FractalRenderStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     *
+     * @return The collector installed by setRenderStats (null if none has
+     * been)
+     */
+    public FractalRenderStats getRenderStats() {
+        return stats;
+    }
+
+    /**
+     * Abandon the current rendering if the installed token has been cancelled.
+     * Evaluators call this before expanding a fractal one level deeper.
+     * @throws FractalCancelledException if it has been cancelled
+     */
+    protected final void checkCancelled() throws FractalCancelledException {
+        if (cancellation != null) {
+            cancellation.check();
+        }
+    }
+
     @Override
     public FractalState mkDefaultState() {
-        return new FractalState();
+        if (sink == null) {
+            return new FractalState();
+        } else {
+            return new FractalState(new AffineTransform(), sink);
+        }
     }
     
 //    public void resetResult() {
@@ -58,7 +150,6 @@ public abstract class AbstractFractalEvaluator
      * @return The result of combining the two values.
      */
     public final FractalPoint combine(FractalPoint p, FractalValue v) {
-        final int MULTIPLIER = 10; // only previous value multiplied, creating asymmetry
         try {
             FractalPoint vp = v.pointValue();
             return modAdd(p.scale(MULTIPLIER), vp);
@@ -67,6 +158,18 @@ public abstract class AbstractFractalEvaluator
         }
     }
     
+    /**
+     * Combine one coordinate of an existing result with that of a new point,
+     * exactly as combine(FractalPoint, FractalValue) would.  This allows an 
+     * evaluator to keep results in primitive variables.
+     * @param p The coordinate of the existing result
+     * @param v The coordinate of the new point
+     * @return The coordinate of the combined result
+     */
+    protected static float combine(float p, float v) {
+        return (p * MULTIPLIER + v) % MODULO;
+    }
+    
 //    /**
 //     * 
 //     * @param p
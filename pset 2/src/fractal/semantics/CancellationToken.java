@@ -0,0 +1,46 @@
+package fractal.semantics;
+
+import fractal.sys.FractalCancelledException;
+
+/**
+ * A flag by which a rendering in progress can be asked to stop.  An evaluator
+ * that has been given a token (see AbstractFractalEvaluator.setCancellation)
+ * checks it each time it is about to expand a fractal one level deeper, and
+ * abandons the rendering, by throwing a FractalCancelledException, once it
+ * has been cancelled.  A token may be cancelled from any thread.
+ *
+ * @author newts
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled;
+
+    public CancellationToken() {
+        cancelled = false;
+    }
+
+    /**
+     * Ask the rendering that checks this token to stop.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     *
+     * @return true if this token has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stop the current rendering if this token has been cancelled.
+     * @throws FractalCancelledException if it has been
+     */
+    public void check() throws FractalCancelledException {
+        if (cancelled) {
+            throw new FractalCancelledException();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTDefFractal;
+import fractal.syntax.ASTDrawFractal;
+import fractal.syntax.ASTDrawLine;
+import fractal.syntax.ASTDrawSelf;
+import fractal.syntax.ASTExp;
+import fractal.syntax.ASTExpAdd;
+import fractal.syntax.ASTExpDiv;
+import fractal.syntax.ASTExpHere;
+import fractal.syntax.ASTExpLit;
+import fractal.syntax.ASTExpMod;
+import fractal.syntax.ASTExpMul;
+import fractal.syntax.ASTExpNegate;
+import fractal.syntax.ASTExpPtCCRot;
+import fractal.syntax.ASTExpPtVar;
+import fractal.syntax.ASTExpSub;
+import fractal.syntax.ASTExpVar;
+import fractal.syntax.ASTFracVar;
+import fractal.syntax.ASTFractalForm;
+import fractal.syntax.ASTProgram;
+import fractal.syntax.ASTStatement;
+import fractal.syntax.ASTStmtClear;
+import fractal.syntax.ASTStmtHome;
+import fractal.syntax.ASTStmtLet;
+import fractal.syntax.ASTStmtSequence;
+import fractal.sys.FractalException;
+import java.util.ArrayList;
+
+/**
+ * A visitor that rewrites a form, replacing each of its sub-expressions that
+ * depends on neither HERE nor a variable with a literal holding its value.
+ * The values are computed by the evaluator that the folder was made for, so a
+ * folded form evaluates exactly as the original would have.
+ *
+ * Forms that contain nothing to fold are returned unchanged (the same object),
+ * so folding a form that has already been folded allocates nothing.  Any
+ * sub-expression whose evaluation fails is left as it is, so that the error
+ * is reported (as before) when, and if, it is evaluated.
+ *
+ * @author newts
+ */
+public class ConstantFolder implements Visitor<FractalState, ASTFractalForm> {
+
+    private final AbstractFractalEvaluator evaluator;
+
+    /**
+     * Create a folder that computes values with the given evaluator.
+     * @param evaluator The evaluator that will evaluate the folded forms
+     */
+    public ConstantFolder(AbstractFractalEvaluator evaluator) {
+        super();
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Fold the constant sub-expressions of the given sequence of statements.
+     * @param seq The sequence to be folded (typically a fractal's body)
+     * @param state The state in which the sequence is being defined
+     * @return The folded sequence
+     */
+    public ASTStmtSequence fold(ASTStmtSequence seq, FractalState state) {
+        return (ASTStmtSequence) fold((ASTFractalForm) seq, state);
+    }
+
+    private ASTFractalForm fold(ASTFractalForm form, FractalState state) {
+        if (form == null) {
+            return null;
+        }
+        try {
+            return form.visit(this, state);
+        } catch (FractalException fe) {
+            return form;
+        }
+    }
+
+    private ASTExp foldExp(ASTExp exp, FractalState state) {
+        return (ASTExp) fold(exp, state);
+    }
+
+    /**
+     * Evaluate the given expression, all of whose operands are literals.
+     * @return A literal for the value of exp, or exp itself if it could not
+     * be evaluated.
+     */
+    private ASTExp reduce(ASTExp exp, FractalState state) {
+        try {
+            return new ASTExpLit(exp.visit(evaluator, state));
+        } catch (FractalException | RuntimeException e) {
+            return exp;
+        }
+    }
+
+    @Override
+    public FractalState mkDefaultState() {
+        return evaluator.mkDefaultState();
+    }
+
+    @Override
+    public ASTFractalForm visitFractalProgram(ASTProgram program, FractalState state) throws FractalException {
+        // the top level statements are only evaluated once
+        return program;
+    }
+
+    @Override
+    public ASTFractalForm visitASTStmtSequence(ASTStmtSequence seq, FractalState state) throws FractalException {
+        ArrayList<ASTStatement> stmts = seq.getSeq();
+        ArrayList<ASTStatement> result = null;
+        for (int i = 0; i < stmts.size(); i++) {
+            ASTStatement stmt = stmts.get(i);
+            ASTStatement folded = (ASTStatement) fold(stmt, state);
+            if (folded != stmt && result == null) {
+                result = new ArrayList<>(stmts.subList(0, i));
+            }
+            if (result != null) {
+                result.add(folded);
+            }
+        }
+        return result == null ? seq : new ASTStmtSequence(result);
+    }
+
+    @Override
+    public ASTFractalForm visitASTFracVar(ASTFracVar form, FractalState state) throws FractalException {
+        return form;
+    }
+
+    @Override
+    public ASTFractalForm visitASTDefFractal(ASTDefFractal form, FractalState state) throws FractalException {
+        ASTStmtSequence body = fold(form.getBody(), state);
+        if (body == form.getBody()) {
+            return form;
+        } else {
+            return new ASTDefFractal(form.getFracName(), body);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTDrawSelf(ASTDrawSelf form, FractalState state) throws FractalException {
+        ASTExp src = foldExp(form.getSrcExp(), state);
+        ASTExp dest = foldExp(form.getDestExp(), state);
+        if (src == form.getSrcExp() && dest == form.getDestExp()) {
+            return form;
+        } else {
+            return new ASTDrawSelf(src, dest);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTStmtClear(ASTStmtClear form, FractalState state) throws FractalException {
+        return form;
+    }
+
+    @Override
+    public ASTFractalForm visitASTStmtHome(ASTStmtHome form, FractalState state) throws FractalException {
+        return form;
+    }
+
+    @Override
+    public ASTFractalForm visitASTStmtLet(ASTStmtLet form, FractalState state) throws FractalException {
+        ASTExp exp = foldExp(form.getPtExp(), state);
+        if (exp == form.getPtExp()) {
+            return form;
+        } else {
+            return new ASTStmtLet(form.getId(), exp);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpHere(ASTExpHere form, FractalState state) throws FractalException {
+        return form;
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpAdd(ASTExpAdd form, FractalState state) throws FractalException {
+        ASTExp e1 = foldExp(form.getFirst(), state);
+        ASTExp e2 = foldExp(form.getSecond(), state);
+        if (e1 instanceof ASTExpLit && e2 instanceof ASTExpLit) {
+            return reduce(new ASTExpAdd(e1, e2), state);
+        } else if (e1 == form.getFirst() && e2 == form.getSecond()) {
+            return form;
+        } else {
+            return new ASTExpAdd(e1, e2);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpSub(ASTExpSub form, FractalState state) throws FractalException {
+        ASTExp e1 = foldExp(form.getFirst(), state);
+        ASTExp e2 = foldExp(form.getSecond(), state);
+        if (e1 instanceof ASTExpLit && e2 instanceof ASTExpLit) {
+            return reduce(new ASTExpSub(e1, e2), state);
+        } else if (e1 == form.getFirst() && e2 == form.getSecond()) {
+            return form;
+        } else {
+            return new ASTExpSub(e1, e2);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpMul(ASTExpMul form, FractalState state) throws FractalException {
+        ASTExp e1 = foldExp(form.getFirst(), state);
+        ASTExp e2 = foldExp(form.getSecond(), state);
+        if (e1 instanceof ASTExpLit && e2 instanceof ASTExpLit) {
+            return reduce(new ASTExpMul(e1, e2), state);
+        } else if (e1 == form.getFirst() && e2 == form.getSecond()) {
+            return form;
+        } else {
+            return new ASTExpMul(e1, e2);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpDiv(ASTExpDiv form, FractalState state) throws FractalException {
+        ASTExp e1 = foldExp(form.getFirst(), state);
+        ASTExp e2 = foldExp(form.getSecond(), state);
+        if (e1 instanceof ASTExpLit && e2 instanceof ASTExpLit) {
+            return reduce(new ASTExpDiv(e1, e2), state);
+        } else if (e1 == form.getFirst() && e2 == form.getSecond()) {
+            return form;
+        } else {
+            return new ASTExpDiv(e1, e2);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpMod(ASTExpMod form, FractalState state) throws FractalException {
+        ASTExp e1 = foldExp(form.getFirst(), state);
+        ASTExp e2 = foldExp(form.getSecond(), state);
+        if (e1 instanceof ASTExpLit && e2 instanceof ASTExpLit) {
+            return reduce(new ASTExpMod(e1, e2), state);
+        } else if (e1 == form.getFirst() && e2 == form.getSecond()) {
+            return form;
+        } else {
+            return new ASTExpMod(e1, e2);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpLit(ASTExpLit form, FractalState state) throws FractalException {
+        return form;
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpPtVar(ASTExpPtVar form, FractalState state) throws FractalException {
+        // variables may be rebound before the body is evaluated
+        return form;
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpVar(ASTExpVar form, FractalState state) throws FractalException {
+        return form;
+    }
+
+    @Override
+    public ASTFractalForm visitASTDrawLine(ASTDrawLine form, FractalState state) throws FractalException {
+        ASTExp src = foldExp(form.getSrcExp(), state);
+        ASTExp dest = foldExp(form.getDestExp(), state);
+        if (src == form.getSrcExp() && dest == form.getDestExp()) {
+            return form;
+        } else {
+            return new ASTDrawLine(src, dest);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTDrawFractal(ASTDrawFractal form, FractalState state) throws FractalException {
+        ASTExp src = foldExp(form.getSrcExp(), state);
+        ASTExp dest = foldExp(form.getDestExp(), state);
+        if (src == form.getSrcExp() && dest == form.getDestExp()) {
+            return form;
+        } else {
+            return new ASTDrawFractal(form.getFractalName(), src, dest);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpPtCCRot(ASTExpPtCCRot form, FractalState state) throws FractalException {
+        ASTExp angle = foldExp(form.getAngleExp(), state);
+        if (angle instanceof ASTExpLit) {
+            return reduce(new ASTExpPtCCRot(angle), state);
+        } else if (angle == form.getAngleExp()) {
+            return form;
+        } else {
+            return new ASTExpPtCCRot(angle);
+        }
+    }
+
+    @Override
+    public ASTFractalForm visitASTExpNegate(ASTExpNegate form, FractalState state) throws FractalException {
+        ASTExp exp = foldExp(form.getExp(), state);
+        if (exp instanceof ASTExpLit) {
+            return reduce(new ASTExpNegate(exp), state);
+        } else if (exp == form.getExp()) {
+            return form;
+        } else {
+            return new ASTExpNegate(exp);
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package fractal.semantics;
 
+import fractal.syntax.SymbolTable;
 import fractal.sys.FractalUnboundException;
 import java.util.*;
 import fractal.values.FractalValue;
@@ -10,13 +11,17 @@ import fractal.values.FractalValue;
  * It supports storing and retrieving bindings, just as would
  * be expected in any dictionary.
  *
+ * Each frame is an array indexed by the symbol ids of the identifiers (see
+ * SymbolTable), so that a variable whose id was resolved when it was parsed
+ * is looked up with an array load (see get(int)).
+ *
  * @author <a href="mailto:daniel.coore@uwimona.edu.jm">Daniel Coore</a>
  * @version 1.0
  * @param <T> The type of values stored in this environment.
  */
 public class Environment<T> {
 
-    HashMap<String, T> dictionary;		// local bindings
+    T[] slots;				// local bindings, by symbol id
     Environment<T> parent;		// parent environment
     // HashMap<String, Function> functionTable;
     
@@ -34,8 +39,9 @@ public class Environment<T> {
      *
      * @param p The parent environment of the new environment
      */
+    @SuppressWarnings("unchecked")
     public Environment(Environment<T> p) {
-	dictionary = new HashMap<>();
+	slots = (T[]) new Object[SymbolTable.size()];
 	parent = p;
         // functionTable = new HashMap<>();
     }
@@ -54,7 +60,7 @@ public class Environment<T> {
     public Environment(String[] ids, T[] values, Environment<T> parent) {
 	this(parent);
 	for (int i = 0; i < ids.length; i++) {
-	    dictionary.put(ids[i], values[i]);
+	    put(ids[i], values[i]);
 	}
     }
     
@@ -73,7 +79,7 @@ public class Environment<T> {
         this(parent);
 	
 	for (int i = 0; i < ids.size(); i++) {
-	    dictionary.put(ids.get(i), values.get(i));
+	    put(ids.get(i), values.get(i));
 	}
     }
 
@@ -104,7 +110,22 @@ public class Environment<T> {
      * @param value the value to which the name is bound.
      */
     public void put(String id, T value) {
-	dictionary.put(id, value);
+	put(SymbolTable.intern(id), value);
+    }
+
+    /**
+     * Store a binding for the identifier with the given symbol id to the
+     * given value within this environment.
+     *
+     * @param slot the symbol id of the name to be bound
+     * @param value the value to which the name is bound.
+     */
+    public void put(int slot, T value) {
+	if (slot >= slots.length) {
+	    slots = Arrays.copyOf(slots,
+		    Math.max(slot + 1, SymbolTable.size()));
+	}
+	slots[slot] = value;
     }
 
     /**
@@ -116,14 +137,28 @@ public class Environment<T> {
      * @exception FractalUnboundException if <code>id</code> is unbound
      */
     public T get(String id) throws FractalUnboundException {
-	T result = dictionary.get(id);
-	if (result == null)
-	    if (parent == null)
-		throw new FractalUnboundException("Unbound variable " + id);
-	    else
-		return parent.get(id);
-	else
-	    return result;
+	return get(SymbolTable.intern(id));
+    }
+
+    /**
+     * Return the value associated with the identifier with the given symbol
+     * id.
+     *
+     * @param slot the symbol id of the identifier.
+     * @return the value associated with the identifier in
+     * this environment.
+     * @exception FractalUnboundException if the identifier is unbound
+     */
+    public T get(int slot) throws FractalUnboundException {
+	Environment<T> env = this;
+	do {
+	    T[] frame = env.slots;
+	    if (slot < frame.length && frame[slot] != null)
+		return frame[slot];
+	    env = env.parent;
+	} while (env != null);
+	throw new FractalUnboundException("Unbound variable " +
+		SymbolTable.nameOf(slot));
     }
 
     /**
@@ -137,9 +172,11 @@ public class Environment<T> {
 	StringBuffer result = new StringBuffer();
         result.append("[");
 
-        for (String key : dictionary.keySet()) {
-            result = result.append(key);
-            result.append(" ");
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                result = result.append(SymbolTable.nameOf(i));
+                result.append(" ");
+            }
         }
         
         result.append("]");
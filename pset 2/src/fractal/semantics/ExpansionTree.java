@@ -0,0 +1,323 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTDrawLine;
+import fractal.syntax.ASTDrawSelf;
+import fractal.syntax.ASTStatement;
+import fractal.syntax.ASTStmtHome;
+import fractal.sys.FractalCancelledException;
+import fractal.sys.FractalException;
+import fractal.values.Fractal;
+import fractal.values.FractalPoint;
+import java.util.List;
+
+/**
+ * The expansion of one DRAW of a fractal, retained so that it can be drawn
+ * again at a different resolution, or with a different viewport, without
+ * being expanded again from scratch.
+ *
+ * Each node of the tree is one rendering of the fractal's body.  Its DRAW
+ * SELF statements either bottomed out as lines, or were expanded into child
+ * nodes.  Each time the tree is drawn (see render), a node whose DRAW SELF
+ * statements have become resolvable is expanded, and a node whose statements
+ * no longer are has its children discarded.  Children that lie outside the
+ * viewport are discarded too, since the evaluators skip them.  The bodies of
+ * the nodes that are kept are not evaluated again; only their points are
+ * drawn.
+ *
+ * Only fractals with a FractalBound can be retained, since their bodies draw
+ * the same thing in every frame.  Each node is drawn in a state derived from
+ * its parent's, exactly as the FractalEvaluator derives it (from HERE, which
+ * moves with the drawing of the nodes before it), so the frames, and whether
+ * they are resolvable, are those of the other evaluators, and so are the
+ * path and the result of the DRAW.
+ *
+ * @author newts
+ */
+public class ExpansionTree {
+
+    private static final byte SELF = 0;
+    private static final byte LINE = 1;
+    private static final byte HOME = 2;
+
+    private final AbstractFractalEvaluator evaluator;
+    private final FractalBound bound;
+    private final byte[] kinds;
+    /** the source of each statement (null if it has none) */
+    private final FractalPoint[] srcPts;
+    /** the destination of each statement */
+    private final FractalPoint[] destPts;
+    private int selves;
+    /** the DRAW's source and destination, in the frame in which it was drawn */
+    private final FractalPoint srcPt;
+    private final FractalPoint destPt;
+    private final Node root;
+    /** true if the last render stopped short of the resolution anywhere */
+    private boolean truncated;
+
+    private ExpansionTree(AbstractFractalEvaluator evaluator, FractalBound bound,
+            int n, FractalPoint srcPt, FractalPoint destPt) {
+        this.evaluator = evaluator;
+        this.bound = bound;
+        this.kinds = new byte[n];
+        this.srcPts = new FractalPoint[n];
+        this.destPts = new FractalPoint[n];
+        this.selves = 0;
+        this.srcPt = srcPt;
+        this.destPt = destPt;
+        this.root = new Node();
+    }
+
+    /**
+     * Make a tree for the drawing of the given fractal from srcPt to destPt
+     * in the given state.  Nothing is drawn until render is called.
+     * @param fractal The fractal to be drawn
+     * @param evaluator The evaluator with which to compute its points
+     * @param state The state in which the DRAW is evaluated
+     * @param srcPt The source of the DRAW
+     * @param destPt The destination of the DRAW
+     * @return The tree, or null if the fractal cannot be retained
+     */
+    public static ExpansionTree of(Fractal fractal,
+            AbstractFractalEvaluator evaluator, FractalState state,
+            FractalPoint srcPt, FractalPoint destPt) {
+        FractalBound bound = FractalBound.of(fractal.getBody(), evaluator, state);
+        if (bound == null) {
+            return null;
+        }
+        List<ASTStatement> body = fractal.getBody().getSeq();
+        ExpansionTree tree = new ExpansionTree(evaluator, bound, body.size(),
+                srcPt, destPt);
+        return tree.analyse(body, state) ? tree : null;
+    }
+
+    /**
+     * Record the points of the body's statements.  (The body has a bound, so
+     * it consists only of suitable statements.)
+     * @return false if a point could not be evaluated
+     */
+    private boolean analyse(List<ASTStatement> body, FractalState state) {
+        try {
+            for (int i = 0; i < body.size(); i++) {
+                ASTStatement stmt = body.get(i);
+                if (stmt instanceof ASTDrawSelf self) {
+                    // as for the evaluators, the source is always HERE
+                    kinds[i] = SELF;
+                    selves++;
+                    destPts[i] = self.getDestExp().visit(evaluator, state).pointValue();
+                } else if (stmt instanceof ASTDrawLine line) {
+                    kinds[i] = LINE;
+                    if (line.getSrcExp() != null) {
+                        srcPts[i] = line.getSrcExp().visit(evaluator, state).pointValue();
+                    }
+                    destPts[i] = line.getDestExp().visit(evaluator, state).pointValue();
+                } else if (stmt instanceof ASTStmtHome) {
+                    kinds[i] = HOME;
+                    destPts[i] = FractalPoint.ORIGIN;
+                } else {
+                    return false;
+                }
+            }
+        } catch (FractalException fe) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Draw the fractal on the given state, at its current resolution, max.
+     * depth and viewport, expanding and collapsing nodes as necessary, and
+     * leave its current point where the DRAW would have left it.
+     * @param state The state in which the DRAW was evaluated (or one with
+     * the same frame)
+     * @return The result of the DRAW
+     * @throws FractalCancelledException if the evaluator's cancellation token
+     * is cancelled during the drawing (the tree remains usable)
+     * @throws FractalException if HERE cannot be located in a node's frame
+     * (see FractalState.getCurrentPoint)
+     */
+    public FractalPoint render(FractalState state) throws FractalException {
+        return render(state, FractalState.UNBOUNDED_DEPTH);
+    }
+
+    /**
+     * Draw the fractal as render(FractalState) does, but expanding no node
+     * deeper than the given level, even if the state's resolution and max.
+     * depth would allow it.  Nodes already expanded more deeply are collapsed.
+     * Drawing the tree with increasing limits refines it progressively, each
+     * drawing expanding only the nodes at the level of the last limit.
+     * @param state The state in which the DRAW was evaluated
+     * @param maxLevel The level below which nodes are not expanded
+     * @return The result of the DRAW (to the given level)
+     * @throws FractalCancelledException if the evaluator's cancellation token
+     * is cancelled during the drawing
+     * @throws FractalException if HERE cannot be located in a node's frame
+     */
+    public FractalPoint render(FractalState state, int maxLevel)
+            throws FractalException {
+        Walk walk = new Walk(state, maxLevel);
+        truncated = false;
+        FractalPoint result = state.isVisible(bound, srcPt, destPt)
+                ? null : walk.passOver(state, srcPt, destPt);
+        if (result == null) {
+            if (walk.stats != null) {
+                walk.stats.derived();
+            }
+            result = walk.render(root, state.derivePooledState(srcPt, destPt));
+        } else {
+            root.children = null;
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return true if the last drawing of the tree was stopped short of the
+     * state's resolution by its level limit somewhere, so that drawing it to
+     * a deeper level would refine it.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     *
+     * @return The number of nodes currently in the tree
+     */
+    public long size() {
+        return root.size();
+    }
+
+    /**
+     * One drawing of the tree, with the settings of the state it is drawn on.
+     */
+    private class Walk {
+        final float resolution;
+        final int maxDepth;
+        final int maxLevel;
+        final FractalRenderStats stats;
+
+        Walk(FractalState state, int maxLevel) {
+            this.resolution = state.getResolution();
+            this.maxDepth = state.getMaxDepth();
+            this.maxLevel = maxLevel;
+            this.stats = evaluator.getRenderStats();
+        }
+
+        /**
+         * Render the body in the given state (derived for the node), expanding
+         * or collapsing its DRAW SELF statements as required.
+         * @return The result of rendering the body
+         */
+        FractalPoint render(Node node, FractalState state)
+                throws FractalException {
+            int level = state.getLevel();
+            boolean resolvable = state.isResolvable();
+            if (resolvable && level >= maxLevel) {
+                resolvable = false;
+                truncated |= selves > 0;
+            }
+            if (!resolvable) {
+                node.children = null;
+            } else {
+                evaluator.checkCancelled();
+                if (node.children == null) {
+                    node.children = new Node[selves];
+                }
+            }
+            FractalPoint result = FractalPoint.ORIGIN;
+            int k = 0;
+            for (int i = 0; i < kinds.length; i++) {
+                FractalPoint dest = destPts[i];
+                switch (kinds[i]) {
+                    case SELF:
+                        if (resolvable) {
+                            FractalPoint here = state.getCurrentPoint();
+                            FractalPoint skipped = state.isVisible(bound, here, dest)
+                                    ? null : passOver(state, here, dest);
+                            if (skipped == null) {
+                                if (stats != null) {
+                                    stats.selfExpanded(level);
+                                    stats.derived();
+                                }
+                                Node child = node.children[k];
+                                if (child == null) {
+                                    child = new Node();
+                                    node.children[k] = child;
+                                }
+                                FractalState childState =
+                                        state.derivePooledState(here, dest);
+                                result = evaluator.combine(result,
+                                        evaluator.combine(dest,
+                                                render(child, childState)));
+                            } else {
+                                if (stats != null) {
+                                    stats.culled(level);
+                                }
+                                node.children[k] = null;
+                                result = evaluator.combine(result,
+                                        evaluator.combine(dest, skipped));
+                            }
+                        } else {
+                            if (stats != null) {
+                                stats.selfLine(level);
+                            }
+                            state.lineTo(dest);
+                            result = evaluator.combine(result, dest);
+                        }
+                        k++;
+                        break;
+                    case LINE:
+                        if (srcPts[i] != null) {
+                            state.moveTo(srcPts[i]);
+                        }
+                        state.lineTo(dest);
+                        result = evaluator.combine(result, dest);
+                        break;
+                    default:
+                        state.moveTo(FractalPoint.ORIGIN);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Skip rendering the body from start to stop in the given state
+         * (because it is not visible), if its result can be computed without
+         * rendering it (see FractalState.passOver), as though it were to be
+         * rendered no deeper than the level limit.
+         * @return The result of the body, or null if it must be rendered
+         * after all
+         */
+        FractalPoint passOver(FractalState state, FractalPoint start,
+                FractalPoint stop) {
+            FractalPoint result = state.passOver(bound, start, stop,
+                    Math.min(maxDepth, maxLevel));
+            if (result != null && maxLevel < maxDepth) {
+                // the body may be resolved further by a deeper drawing
+                truncated |= bound.mayResolve(state.derivedScale(start, stop),
+                        state.getLevel() + 1, resolution, maxLevel);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The rendering of the body in one frame.
+     */
+    private static final class Node {
+        /** the nodes of the DRAW SELF statements (null while they are lines) */
+        Node[] children;
+
+        long size() {
+            long n = 1;
+            if (children != null) {
+                for (Node child : children) {
+                    if (child != null) {
+                        n += child.size();
+                    }
+                }
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTDefFractal;
+import fractal.syntax.ASTDrawFractal;
+import fractal.syntax.ASTDrawLine;
+import fractal.syntax.ASTDrawSelf;
+import fractal.syntax.ASTExp;
+import fractal.syntax.ASTExpAdd;
+import fractal.syntax.ASTExpDiv;
+import fractal.syntax.ASTExpHere;
+import fractal.syntax.ASTExpLit;
+import fractal.syntax.ASTExpMod;
+import fractal.syntax.ASTExpMul;
+import fractal.syntax.ASTExpNegate;
+import fractal.syntax.ASTExpPtCCRot;
+import fractal.syntax.ASTExpPtVar;
+import fractal.syntax.ASTExpSub;
+import fractal.syntax.ASTExpVar;
+import fractal.syntax.ASTFracVar;
+import fractal.syntax.ASTFractalForm;
+import fractal.syntax.ASTProgram;
+import fractal.syntax.ASTStatement;
+import fractal.syntax.ASTStmtClear;
+import fractal.syntax.ASTStmtHome;
+import fractal.syntax.ASTStmtLet;
+import fractal.syntax.ASTStmtSequence;
+import fractal.sys.FractalException;
+
+/**
+ * A visitor that determines whether a form depends on the context in which it
+ * is evaluated, either through a reference to the current point (HERE) or,
+ * optionally, through a reference to a variable.  The value of a form that
+ * depends on neither is determined entirely by its coordinate frame.
+ *
+ * @author newts
+ */
+public class FormDependence implements Visitor<Void, Boolean> {
+
+    private static final FormDependence PEN = new FormDependence(false);
+    private static final FormDependence CONTEXT = new FormDependence(true);
+
+    /**
+     * Determine whether the given form refers to HERE.
+     * @param form The form to be checked
+     * @return true if HERE occurs within the given form
+     */
+    public static boolean onPen(ASTFractalForm form) {
+        return PEN.test(form);
+    }
+
+    /**
+     * Determine whether the given form refers to HERE or to any variable.
+     * @param form The form to be checked
+     * @return true if either HERE or a variable occurs within the given form
+     */
+    public static boolean onContext(ASTFractalForm form) {
+        return CONTEXT.test(form);
+    }
+
+    private final boolean includeVars;
+
+    private FormDependence(boolean includeVars) {
+        super();
+        this.includeVars = includeVars;
+    }
+
+    private boolean test(ASTFractalForm form) {
+        try {
+            return form != null && form.visit(this, null);
+        } catch (FractalException fe) {
+            // no visit method below throws, but be conservative
+            return true;
+        }
+    }
+
+    @Override
+    public Void mkDefaultState() {
+        return null;
+    }
+
+    private boolean either(ASTExp e1, ASTExp e2) {
+        return test(e1) || test(e2);
+    }
+
+    @Override
+    public Boolean visitFractalProgram(ASTProgram program, Void state) throws FractalException {
+        return test(program.getStatements());
+    }
+
+    @Override
+    public Boolean visitASTStmtSequence(ASTStmtSequence seq, Void state) throws FractalException {
+        for (ASTStatement s : seq.getSeq()) {
+            if (test(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitASTFracVar(ASTFracVar form, Void state) throws FractalException {
+        return includeVars;
+    }
+
+    @Override
+    public Boolean visitASTDefFractal(ASTDefFractal form, Void state) throws FractalException {
+        // the body is only evaluated when the fractal is drawn
+        return false;
+    }
+
+    @Override
+    public Boolean visitASTDrawSelf(ASTDrawSelf form, Void state) throws FractalException {
+        return either(form.getSrcExp(), form.getDestExp());
+    }
+
+    @Override
+    public Boolean visitASTStmtClear(ASTStmtClear form, Void state) throws FractalException {
+        return false;
+    }
+
+    @Override
+    public Boolean visitASTStmtHome(ASTStmtHome form, Void state) throws FractalException {
+        return false;
+    }
+
+    @Override
+    public Boolean visitASTStmtLet(ASTStmtLet form, Void state) throws FractalException {
+        return test(form.getPtExp());
+    }
+
+    @Override
+    public Boolean visitASTExpHere(ASTExpHere form, Void state) throws FractalException {
+        return true;
+    }
+
+    @Override
+    public Boolean visitASTExpAdd(ASTExpAdd form, Void state) throws FractalException {
+        return either(form.getFirst(), form.getSecond());
+    }
+
+    @Override
+    public Boolean visitASTExpSub(ASTExpSub form, Void state) throws FractalException {
+        return either(form.getFirst(), form.getSecond());
+    }
+
+    @Override
+    public Boolean visitASTExpMul(ASTExpMul form, Void state) throws FractalException {
+        return either(form.getFirst(), form.getSecond());
+    }
+
+    @Override
+    public Boolean visitASTExpDiv(ASTExpDiv form, Void state) throws FractalException {
+        return either(form.getFirst(), form.getSecond());
+    }
+
+    @Override
+    public Boolean visitASTExpMod(ASTExpMod form, Void state) throws FractalException {
+        return either(form.getFirst(), form.getSecond());
+    }
+
+    @Override
+    public Boolean visitASTExpLit(ASTExpLit form, Void state) throws FractalException {
+        return false;
+    }
+
+    @Override
+    public Boolean visitASTExpPtVar(ASTExpPtVar form, Void state) throws FractalException {
+        return includeVars;
+    }
+
+    @Override
+    public Boolean visitASTExpVar(ASTExpVar form, Void state) throws FractalException {
+        return includeVars;
+    }
+
+    @Override
+    public Boolean visitASTDrawLine(ASTDrawLine form, Void state) throws FractalException {
+        return either(form.getSrcExp(), form.getDestExp());
+    }
+
+    @Override
+    public Boolean visitASTDrawFractal(ASTDrawFractal form, Void state) throws FractalException {
+        return either(form.getSrcExp(), form.getDestExp());
+    }
+
+    @Override
+    public Boolean visitASTExpPtCCRot(ASTExpPtCCRot form, Void state) throws FractalException {
+        return test(form.getAngleExp());
+    }
+
+    @Override
+    public Boolean visitASTExpNegate(ASTExpNegate form, Void state) throws FractalException {
+        return test(form.getExp());
+    }
+
+}
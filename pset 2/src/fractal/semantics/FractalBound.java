@@ -0,0 +1,483 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTDrawLine;
+import fractal.syntax.ASTDrawSelf;
+import fractal.syntax.ASTExp;
+import fractal.syntax.ASTStatement;
+import fractal.syntax.ASTStmtHome;
+import fractal.syntax.ASTStmtSequence;
+import fractal.sys.FractalException;
+import fractal.values.FractalPoint;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A conservative bound on everything that a fractal's body can draw, at any
+ * depth, in the body's own (unit) frame, together with the point at which the
+ * body always leaves the pen.  It allows an evaluator to skip drawing a
+ * fractal whose bound lies outside the visible part of the screen (see
+ * FractalState.setViewport), to put the pen where the drawing would have
+ * left it, and to compute the result that the drawing would have had (see
+ * resultAt).
+ *
+ * The bound is a disc that contains every point the body visits, and which
+ * each DRAW SELF maps into itself, so by induction it contains the drawing of
+ * the body to any depth.  It only exists for bodies whose drawing is
+ * determined by the frame: every statement is a DRAW LINE, a DRAW SELF or a
+ * HOME, no point depends on HERE, and every DRAW SELF shrinks its frame.
+ * If there is a DRAW SELF, the body must also end at X, so that the pen ends
+ * at the destination of a DRAW SELF however deeply it is resolved.
+ *
+ * The points may refer to variables, since a body of this kind binds none.
+ * Their values when the bound was made are kept, so that holdsIn can tell
+ * whether the variables have been rebound since.
+ *
+ * @author newts
+ */
+public class FractalBound {
+
+    /** The relative margin added to the radius to absorb rounding errors */
+    private static final double SLACK = 1e-4;
+
+    /** A bound on the relative error, in single precision, of the scale of
+     * a DRAW SELF's frame, which starts at HERE as located on the screen, and
+     * is measured between points rounded on the screen */
+    private static final double DRIFT = 0x1p-20;
+
+    private final double centreX;
+    private final double centreY;
+    private final double radius;
+    private final float exitX;
+    private final float exitY;
+    /** The points that depend on variables, and their values */
+    private final ASTExp[] varying;
+    private final FractalPoint[] values;
+    /** The destinations of the body's DRAW statements, which make up its
+     * result (HOME contributes nothing to it) */
+    private final float[] dests;
+    /** The length of the segment spanned by each of those statements that is
+     * a DRAW SELF, relative to the body's frame, or -1 if it is a DRAW LINE */
+    private final double[] spans;
+    private final double minSpan;
+    private final double maxSpan;
+    /** The result of the body resolved to each depth, so far computed, as
+     * (x, y) pairs (see uniformResult) */
+    private volatile float[] uniform;
+
+    private FractalBound(double centreX, double centreY, double radius,
+            FractalPoint exit, ArrayList<ASTExp> varying,
+            ArrayList<FractalPoint> values, ArrayList<FractalPoint> draws,
+            ArrayList<Double> spans) {
+        this.centreX = centreX;
+        this.centreY = centreY;
+        this.radius = radius;
+        this.exitX = exit.getX();
+        this.exitY = exit.getY();
+        this.varying = varying.toArray(new ASTExp[0]);
+        this.values = values.toArray(new FractalPoint[0]);
+        this.dests = new float[2 * draws.size()];
+        this.spans = new double[draws.size()];
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = 0;
+        for (int i = 0; i < draws.size(); i++) {
+            dests[2 * i] = draws.get(i).getX();
+            dests[2 * i + 1] = draws.get(i).getY();
+            this.spans[i] = spans.get(i);
+            if (this.spans[i] >= 0) {
+                lo = Math.min(lo, this.spans[i]);
+                hi = Math.max(hi, this.spans[i]);
+            }
+        }
+        this.minSpan = lo;
+        this.maxSpan = hi;
+        float[] level0 = new float[2];
+        fold(null, level0);
+        this.uniform = level0;
+    }
+
+    /**
+     * Compute the bound of the given fractal body.
+     * @param body The body of a fractal (preferably already folded)
+     * @param evaluator The evaluator with which to compute its points
+     * @param state The state in which the body will be drawn (for the values
+     * of its variables)
+     * @return The bound, or null if the body's drawing cannot be bounded
+     */
+    public static FractalBound of(ASTStmtSequence body,
+            AbstractFractalEvaluator evaluator, FractalState state) {
+        ArrayList<ASTExp> varying = new ArrayList<>();
+        ArrayList<FractalPoint> values = new ArrayList<>();
+        ArrayList<FractalPoint> points = new ArrayList<>();
+        // the start and end of each DRAW SELF, in pairs
+        ArrayList<FractalPoint> selves = new ArrayList<>();
+        // the destination of each DRAW, and the span of each DRAW SELF
+        ArrayList<FractalPoint> draws = new ArrayList<>();
+        ArrayList<Double> spans = new ArrayList<>();
+        FractalPoint pen = FractalPoint.ORIGIN;
+        points.add(pen);
+        try {
+            for (ASTStatement s : body.getSeq()) {
+                if (s instanceof ASTDrawLine line) {
+                    if (line.getSrcExp() != null) {
+                        pen = valueOf(line.getSrcExp(), evaluator, state,
+                                varying, values);
+                        points.add(pen);
+                    }
+                    pen = valueOf(line.getDestExp(), evaluator, state,
+                            varying, values);
+                    draws.add(pen);
+                    spans.add(-1.0);
+                } else if (s instanceof ASTDrawSelf self) {
+                    // (the source is ignored: a DRAW SELF starts at HERE)
+                    FractalPoint dest = valueOf(self.getDestExp(), evaluator,
+                            state, varying, values);
+                    selves.add(pen);
+                    selves.add(dest);
+                    draws.add(dest);
+                    // (HERE will be the pen, as near as the screen allows)
+                    spans.add(pen.distanceFrom(dest));
+                    pen = dest;
+                } else if (s instanceof ASTStmtHome) {
+                    pen = FractalPoint.ORIGIN;
+                } else {
+                    return null;
+                }
+                points.add(pen);
+            }
+        } catch (FractalException fe) {
+            return null;
+        }
+        if (!selves.isEmpty() &&
+                (pen.getX() != 1 || pen.getY() != 0)) {
+            return null;
+        }
+
+        // centre the disc on the box around the points visited
+        double xlo = Double.POSITIVE_INFINITY;
+        double ylo = Double.POSITIVE_INFINITY;
+        double xhi = Double.NEGATIVE_INFINITY;
+        double yhi = Double.NEGATIVE_INFINITY;
+        for (FractalPoint p : points) {
+            xlo = Math.min(xlo, p.getX());
+            ylo = Math.min(ylo, p.getY());
+            xhi = Math.max(xhi, p.getX());
+            yhi = Math.max(yhi, p.getY());
+        }
+        double cx = (xlo + xhi) / 2;
+        double cy = (ylo + yhi) / 2;
+        double r = 0;
+        for (FractalPoint p : points) {
+            r = Math.max(r, Math.hypot(p.getX() - cx, p.getY() - cy));
+        }
+        // each DRAW SELF maps the disc (c, r) to (S(c), s r), which lies
+        // within (c, r) when |S(c) - c| + s r <= r
+        for (int i = 0; i < selves.size(); i += 2) {
+            FractalPoint start = selves.get(i);
+            FractalPoint stop = selves.get(i + 1);
+            double dx = stop.getX() - start.getX();
+            double dy = stop.getY() - start.getY();
+            double s = Math.hypot(dx, dy);
+            if (!(s < 1)) {
+                return null;
+            }
+            double mx = start.getX() + cx * dx - cy * dy;
+            double my = start.getY() + cx * dy + cy * dx;
+            r = Math.max(r, Math.hypot(mx - cx, my - cy) / (1 - s));
+        }
+        if (!Double.isFinite(r)) {
+            return null;
+        }
+        return new FractalBound(cx, cy, r * (1 + SLACK) + SLACK, pen, varying,
+                values, draws, spans);
+    }
+
+    private static FractalPoint valueOf(ASTExp exp,
+            AbstractFractalEvaluator evaluator, FractalState state,
+            ArrayList<ASTExp> varying, ArrayList<FractalPoint> values)
+            throws FractalException {
+        if (FormDependence.onPen(exp)) {
+            throw new FractalException("Point depends on HERE");
+        }
+        FractalPoint result = exp.visit(evaluator, state).pointValue();
+        if (FormDependence.onContext(exp)) {
+            varying.add(exp);
+            values.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * Determine whether this bound still applies to its body, that is,
+     * whether the variables that the body refers to still have the values
+     * that they had when it was made.
+     * @param evaluator The evaluator with which to compute the points
+     * @param state The state in which the body is about to be drawn
+     * @return true if the bound is still valid
+     */
+    public boolean holdsIn(AbstractFractalEvaluator evaluator, FractalState state) {
+        try {
+            for (int i = 0; i < varying.length; i++) {
+                FractalPoint p = varying[i].visit(evaluator, state).pointValue();
+                // (FractalPoint.equals tolerates small differences)
+                if (p.getX() != values[i].getX() || p.getY() != values[i].getY()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (FractalException fe) {
+            return false;
+        }
+    }
+
+    /**
+     * Compute the result that rendering the body in a frame of the given
+     * scale and level would have, at the given resolution and max. depth,
+     * without rendering it.  Each DRAW SELF in a frame is resolved exactly
+     * when the frame is resolvable (see FractalState.isResolvable), and the
+     * scale of the frame it derives is the product of the scale and its span.
+     *
+     * The start of each DRAW SELF is HERE, which is only known to single
+     * precision on the screen, and the evaluators measure the scale of each
+     * frame from the single precision screen images of its origin and X, so
+     * the scales of the frames that they derive may differ slightly from
+     * those computed here.  Where that could change whether a frame is
+     * resolvable, the result cannot be determined without rendering the
+     * body.
+     * @param scale The scale of the body's frame (exactly as the evaluator
+     * will have computed it)
+     * @param level The level of the body's frame
+     * @param resolution The resolution at which the body would be rendered
+     * @param maxDepth The max. depth to which it would be rendered
+     * @param screenSize A bound on the magnitude of the screen coordinates
+     * of the body's drawing
+     * @return The body's result, or null if it could not be determined
+     */
+    public FractalPoint resultAt(double scale, int level, float resolution,
+            int maxDepth, double screenSize) {
+        double drift = drift(scale, screenSize);
+        float[] result = new float[2];
+        if (!resultAt(scale, 0, level, resolution, maxDepth, drift, result)) {
+            return null;
+        }
+        return new FractalPoint(result[0], result[1]);
+    }
+
+    /**
+     * Determine the number of levels to which the evaluators would resolve
+     * the body in the given state's frame, if every DRAW SELF in it is
+     * certainly resolved to the same depth (as for resultAt).
+     * @param state The state in which the body is rendered
+     * @return The depth, or -1 if it may differ between the DRAW SELF
+     * statements (or the state has a base transform, which may scale them
+     * unevenly)
+     */
+    public int depthIn(FractalState state) {
+        double scale = state.getCurrentScale();
+        if (!state.isResolvable()) {
+            return 0;
+        } else if (state.baseTransform != null) {
+            return -1;
+        }
+        Point2D centre = state.toScreen(new FractalPoint(centreX, centreY));
+        double screenSize = Math.max(Math.abs(centre.getX()),
+                Math.abs(centre.getY())) + radius * scale;
+        return uniformDepth(scale, 0, state.getLevel(), state.getResolution(),
+                state.getMaxDepth(), drift(scale, screenSize));
+    }
+
+    /**
+     * @return A bound on the error in the scale of a frame derived one level
+     * below one of the given scale, whose drawing lies within the given
+     * magnitude of screen coordinates
+     */
+    private double drift(double scale, double screenSize) {
+        return (screenSize + scale * (1 + Math.hypot(centreX, centreY)
+                + radius)) * DRIFT;
+    }
+
+    /**
+     * Compute the result of the body in a frame whose scale is within error
+     * of the given one, as resultAt does, into the given array.
+     * @return false if the result could not be determined
+     */
+    private boolean resultAt(double scale, double error, int level,
+            float resolution, int maxDepth, double drift, float[] result) {
+        if (level >= maxDepth || scale + error < resolution) {
+            uniformResult(0, result);
+            return true;
+        } else if (scale - error < resolution) {
+            return false;
+        }
+        int depth = uniformDepth(scale, error, level, resolution, maxDepth,
+                drift);
+        if (depth > 0) {
+            uniformResult(depth, result);
+            return true;
+        }
+        // the DRAW SELF statements are resolved to different depths
+        float[] child = new float[2];
+        float rx = 0;
+        float ry = 0;
+        for (int i = 0; i < spans.length; i++) {
+            float x = dests[2 * i];
+            float y = dests[2 * i + 1];
+            if (spans[i] >= 0) {
+                if (!resultAt(scale * spans[i], error * spans[i] + drift,
+                        level + 1, resolution, maxDepth, drift, child)) {
+                    return false;
+                }
+                x = AbstractFractalEvaluator.combine(x, child[0]);
+                y = AbstractFractalEvaluator.combine(y, child[1]);
+            }
+            rx = AbstractFractalEvaluator.combine(rx, x);
+            ry = AbstractFractalEvaluator.combine(ry, y);
+        }
+        result[0] = rx;
+        result[1] = ry;
+        return true;
+    }
+
+    /**
+     * Determine whether every DRAW SELF in a resolvable frame of the given
+     * scale is certainly resolved to the same depth, however the spans of its
+     * frames combine.
+     * @return The number of levels to which the body is resolved, or -1 if
+     * that may differ between the frames derived from it
+     */
+    private int uniformDepth(double scale, double error, int level,
+            float resolution, int maxDepth, double drift) {
+        if (spans.length == 0 || maxSpan == 0) {
+            // nothing below depends on the depth
+            return 1;
+        }
+        double lo = scale;
+        double hi = scale;
+        double e = error;
+        int depth = 0;
+        // the frames derived at each depth have scales in [lo - e, hi + e]
+        while (level + depth < maxDepth && !(hi + e < resolution)) {
+            if (lo - e < resolution) {
+                return -1;
+            }
+            lo *= minSpan;
+            hi *= maxSpan;
+            e = e * maxSpan + drift;
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Determine whether rendering the body in a frame of the given scale and
+     * level might derive a resolvable frame at the given level, if the depth
+     * were not limited.
+     * @param scale The scale of the body's frame
+     * @param level The level of the body's frame
+     * @param resolution The resolution at which the body would be rendered
+     * @param toLevel The level of the derived frames in question
+     * @return false only if every frame at that level is certainly too small
+     * to be resolved
+     */
+    public boolean mayResolve(double scale, int level, float resolution,
+            int toLevel) {
+        double hi = scale;
+        for (int l = level; l < toLevel && hi * (1 + SLACK) >= resolution; l++) {
+            hi *= maxSpan;
+        }
+        return hi * (1 + SLACK) >= resolution;
+    }
+
+    /**
+     * Find the result of the body when every DRAW SELF in it is resolved to
+     * the given depth (at 0, each is drawn as a line) into the given array.
+     */
+    private void uniformResult(int depth, float[] result) {
+        float[] table = uniform;
+        if (2 * depth >= table.length) {
+            // (racing threads compute the same values, so either may win)
+            int known = table.length / 2;
+            table = Arrays.copyOf(table, 2 * (depth + 1));
+            for (int d = known; d <= depth; d++) {
+                float[] next = new float[2];
+                fold(new float[]{table[2 * d - 2], table[2 * d - 1]}, next);
+                table[2 * d] = next[0];
+                table[2 * d + 1] = next[1];
+            }
+            uniform = table;
+        }
+        result[0] = table[2 * depth];
+        result[1] = table[2 * depth + 1];
+    }
+
+    /**
+     * Combine the destinations of the body's DRAW statements into its result,
+     * combining that of each DRAW SELF with the given result of the body
+     * drawn in its frame (or not, if it is null, since it is a line).
+     */
+    private void fold(float[] inner, float[] result) {
+        float rx = 0;
+        float ry = 0;
+        for (int i = 0; i < spans.length; i++) {
+            float x = dests[2 * i];
+            float y = dests[2 * i + 1];
+            if (inner != null && spans[i] >= 0) {
+                x = AbstractFractalEvaluator.combine(x, inner[0]);
+                y = AbstractFractalEvaluator.combine(y, inner[1]);
+            }
+            rx = AbstractFractalEvaluator.combine(rx, x);
+            ry = AbstractFractalEvaluator.combine(ry, y);
+        }
+        result[0] = rx;
+        result[1] = ry;
+    }
+
+    /**
+     *
+     * @return The x-coordinate of the centre of the bounding disc
+     */
+    public double getCentreX() {
+        return centreX;
+    }
+
+    /**
+     *
+     * @return The y-coordinate of the centre of the bounding disc
+     */
+    public double getCentreY() {
+        return centreY;
+    }
+
+    /**
+     *
+     * @return The radius of the bounding disc
+     */
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     *
+     * @return The x-coordinate of the point at which the body leaves the pen
+     */
+    public float getExitX() {
+        return exitX;
+    }
+
+    /**
+     *
+     * @return The y-coordinate of the point at which the body leaves the pen
+     */
+    public float getExitY() {
+        return exitY;
+    }
+
+    /**
+     *
+     * @return true if the body leaves the pen at X (i.e. at the destination
+     * of the statement that draws it)
+     */
+    public boolean exitsAtX() {
+        return exitX == 1 && exitY == 0;
+    }
+}
@@ -27,6 +27,7 @@ import fractal.syntax.ASTStmtSequence;
 import fractal.syntax.ASTStmtClear;
 import fractal.syntax.ASTStmtHome;
 import fractal.syntax.ASTStmtLet;
+import fractal.syntax.StatementStream;
 import fractal.sys.FractalException;
 import fractal.values.Fractal;
 import fractal.values.FractalPoint;
@@ -39,8 +40,11 @@ import fractal.values.FractalValue;
  */
 public class FractalEvaluator extends AbstractFractalEvaluator {
     
+    private final ConstantFolder folder;
+
     public FractalEvaluator() {
         super();
+        folder = new ConstantFolder(this);
     }
 
     @Override
@@ -51,10 +55,7 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
         
         ASTStmtSequence stmts = program.getStatements();
         FractalValue result = visitASTStmtSequence(stmts, state);
-        // The following hash results are supposed to be identical for the same
-        // fractal rendered between the same end points.  
-        System.out.println(String.format("Resultant Pt: %s", state.getPathResultant()));
-        System.out.println(String.format("Hash: %x", state.getPathHash()));
+        printSummary(state);
         
         // The return values based on combining the detination points that arise 
         // are also supposed to be unique to the fractal and scale, but are 
@@ -62,6 +63,40 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
         return result;
     }
 
+    /**
+     * Evaluate the statements of a program as they are parsed, one at a time,
+     * so that the first can be drawn before the rest have been read, and each
+     * statement's tree is discarded once it has been evaluated.  The result
+     * is as visitFractalProgram's would be for the whole program, but no
+     * summary is printed (see printSummary), so that the caller may report
+     * the hash as it sees fit.  (The retained engine does not retain what is
+     * drawn this way.)
+     * @param statements The statements of the program
+     * @param state The state in which to evaluate them
+     * @return The combination of the statements' values
+     * @throws FractalException if a statement cannot be parsed or evaluated
+     * (those before it have been evaluated already)
+     */
+    public FractalValue evalStatements(StatementStream statements, FractalState state) throws FractalException {
+        FractalPoint result = FractalPoint.ORIGIN;
+        while (statements.hasNext()) {
+            result = combine(result, statements.next().visit(this, state));
+        }
+        return result;
+    }
+
+    /**
+     * Print the resultant point and the hash of the path drawn in the given
+     * state, as is done after each program.
+     * @param state The state in which the program was evaluated
+     */
+    public static void printSummary(FractalState state) {
+        // The following hash results are supposed to be identical for the same
+        // fractal rendered between the same end points.  
+        System.out.println(String.format("Resultant Pt: %s", state.getPathResultant()));
+        System.out.println(String.format("Hash: %x", state.getPathHash()));
+    }
+
     @Override
     public FractalValue visitASTStmtSequence(ASTStmtSequence seq, FractalState state) throws FractalException {
         FractalPoint result = FractalPoint.ORIGIN;
@@ -73,23 +108,29 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
 
     @Override
     public FractalValue visitASTFracVar(ASTFracVar form, FractalState state) throws FractalException {
-        String id = form.getVar();
-        return state.lookup(id);
+        return state.lookup(form.getSlot());
     }
 
     @Override
     public FractalValue visitASTDefFractal(ASTDefFractal form, FractalState state) throws FractalException {
         String name = form.getFracName();
-        ASTStmtSequence bod = form.getBody();
+        FractalEvents.Definition event = new FractalEvents.Definition();
+        event.begin();
+        // the body is evaluated at every level, so do the constant work once
+        ASTStmtSequence bod = folder.fold(form.getBody(), state);
         FractalValue result = new Fractal(name, bod, state);
-        state.bind(name, result);
+        state.bind(form.getSlot(), result);
+        if (event.isEnabled()) {
+            event.fractal = name;
+            event.commit();
+        }
         return result;
     }
     
     @Override
     public FractalValue visitASTDrawFractal(ASTDrawFractal form, FractalState state) throws FractalException {
         String fractalName = form.getFractalName();
-        Fractal fractal = state.lookup(fractalName).fractalValue();
+        Fractal fractal = state.lookup(form.getSlot()).fractalValue();
         ASTExp srcExp = form.getSrcExp();
         ASTExp destExp = form.getDestExp();
 
@@ -99,17 +140,236 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
         if (srcExp != null) {
             srcPt = srcExp.visit(this, state).pointValue();
         }
+        if (state.getLevel() != 0) {
+            return drawFractal(fractal, srcPt, destPt, state);
+        }
+        // a top-level DRAW
+        FractalRenderStats stats = getRenderStats();
+        FractalEvents.Draw event = new FractalEvents.Draw();
+        boolean recording = event.isEnabled();
+        long before = recording ? state.getSegmentCount() : 0;
+        if (stats != null) {
+            stats.startRender(fractalName, state);
+        }
+        event.begin();
+        try {
+            return drawFractal(fractal, srcPt, destPt, state);
+        } finally {
+            if (stats != null) {
+                stats.finishRender(state);
+            }
+            if (recording) {
+                event.fractal = fractalName;
+                event.scale = state.getCurrentScale() * Math.hypot(
+                        destPt.getX() - srcPt.getX(), destPt.getY() - srcPt.getY());
+                event.resolution = state.getResolution();
+                event.segments = state.getSegmentCount() - before;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Draw the given fractal from srcPt to destPt, as a DRAW statement does
+     * once its points have been evaluated.
+     * @param fractal The fractal named in the DRAW statement
+     * @param srcPt The source of the DRAW
+     * @param destPt The destination of the DRAW
+     * @param state The state in which the DRAW statement was encountered
+     * @return The result of the DRAW
+     * @throws FractalException if the fractal cannot be rendered
+     */
+    protected FractalValue drawFractal(Fractal fractal, FractalPoint srcPt,
+            FractalPoint destPt, FractalState state) throws FractalException {
+        FractalRenderStats stats = getRenderStats();
+        FractalBound bound = boundOf(fractal, state);
+        if (!state.isVisible(bound, srcPt, destPt)) {
+            FractalPoint skipped = state.passOver(bound, srcPt, destPt);
+            if (skipped != null) {
+                if (stats != null) {
+                    stats.culled(state.getLevel());
+                }
+                return skipped;
+            }
+        }
+        if (stats != null) {
+            stats.derived();
+        }
+        FractalState newState = state.derivePooledState(srcPt, destPt);
+        return renderFractal(fractal, state, newState);
+    }
 
-        FractalState newState = state.deriveState(srcPt, destPt);
+    /**
+     * Return the bound of the given fractal, as it is about to be drawn in
+     * the given state, computing it if it has not been already, or if the
+     * variables it depends on have changed since.  Nothing is computed if the
+     * state has no viewport, since the bound is only needed for culling.
+     * @param fractal The fractal to be drawn
+     * @param state The state in which it will be drawn
+     * @return The fractal's bound, or null if it has none (or none is needed)
+     */
+    protected FractalBound boundOf(Fractal fractal, FractalState state) {
+        if (!state.hasViewport()) {
+            return null;
+        }
+        FractalBound bound = fractal.getBound();
+        if (bound == null || !bound.holdsIn(this, state)) {
+            bound = FractalBound.of(fractal.getBody(), this, state);
+            fractal.setBound(bound);
+        }
+        return bound;
+    }
+
+    /**
+     * Render the body of a fractal that has been named in a DRAW statement.
+     * The fractal is installed as the current one (for the benefit of SELF)
+     * for the duration of the rendering.
+     * @param fractal The fractal being drawn
+     * @param state The state in which the DRAW statement was encountered
+     * @param newState The state derived for the fractal's coordinate frame
+     * @return The result of rendering the fractal's body
+     * @throws FractalException if the body cannot be rendered
+     */
+    protected FractalValue renderFractal(Fractal fractal, FractalState state, 
+            FractalState newState) throws FractalException {
+        checkCancelled();
         state.startFractal(fractal);
+        try {
+            return fractal.getBody().visit(this, newState);
+        } finally {
+            // (even if the rendering was abandoned)
+            state.stopFractal();
+        }
+    }
 
+    /**
+     * Render the body of the current fractal one level deeper, in response to
+     * a resolvable DRAW SELF statement.
+     * @param fractal The current fractal
+     * @param newState The state derived for the SELF reference's frame
+     * @param destPt The destination of the DRAW SELF statement
+     * @return The destination combined with the result of rendering the body
+     * @throws FractalException if the body cannot be rendered
+     */
+    protected FractalValue renderSelf(Fractal fractal, FractalState newState, 
+            FractalPoint destPt) throws FractalException {
         FractalValue result = fractal.getBody().visit(this, newState);
+        return combine(destPt, result);
+    }
 
-        state.stopFractal();
-        return result;
+    /**
+     * Draw a DRAW SELF statement to the given destination, once it has been
+     * evaluated, as every engine does: if the state is not resolvable, it is
+     * drawn as a line; if the fractal lies outside the viewport, it is passed
+     * over; otherwise, the current fractal's body is rendered in a state
+     * derived for the statement's frame (see renderSelf).  It is counted in
+     * the render stats, and the rendering may be sampled as an Expansion
+     * event.
+     * @param x The x-coordinate of the statement's destination
+     * @param y The y-coordinate of the statement's destination
+     * @param state The state in which the statement is drawn
+     * @return The result of the statement, or null if it was drawn as a line,
+     * in which case its result is its destination (which saves making a
+     * point for the most common case)
+     * @throws FractalException if the body cannot be rendered, or rendering
+     * has been cancelled
+     */
+    protected final FractalValue drawSelf(float x, float y, FractalState state)
+            throws FractalException {
+        FractalRenderStats stats = getRenderStats();
+        if (!state.isResolvable()) {
+            if (stats != null) {
+                stats.selfLine(state.getLevel());
+            }
+            state.lineTo(x, y);
+            return null;
+        }
+        checkCancelled();
+        Fractal fractal = state.getCurrentFractal();
+        FractalPoint srcPt = state.getCurrentPoint();
+        FractalPoint destPt = new FractalPoint(x, y);
+        // the bound was brought up to date when the fractal was started
+        FractalBound bound = fractal.getBound();
+        if (!state.isVisible(bound, srcPt, destPt)) {
+            FractalPoint skipped = state.passOver(bound, srcPt, destPt);
+            if (skipped != null) {
+                if (stats != null) {
+                    stats.culled(state.getLevel());
+                }
+                return combine(destPt, skipped);
+            }
+        }
+        FractalState newState = state.derivePooledState(srcPt, destPt);
+        boolean sampled = FractalEvents.sampleExpansion();
+        if (stats != null || sampled) {
+            return renderObservedSelf(fractal, state, newState, destPt,
+                    sampled);
+        }
+        return renderSelf(fractal, newState, destPt);
     }
 
+    /**
+     * Render a DRAW SELF as renderSelf does, counting it in the render stats
+     * (if any), and recording it as an Expansion event if it was sampled.
+     * (This is kept apart from drawSelf, so that it remains small enough to
+     * be inlined.)
+     */
+    private FractalValue renderObservedSelf(Fractal fractal, FractalState state,
+            FractalState newState, FractalPoint destPt, boolean sampled)
+            throws FractalException {
+        FractalRenderStats stats = getRenderStats();
+        if (stats != null) {
+            stats.selfExpanded(state.getLevel());
+            stats.derived();
+        }
+        if (!sampled) {
+            return renderSelf(fractal, newState, destPt);
+        }
+        return renderSampledSelf(fractal, newState, destPt,
+                new FractalEvents.Expansion());
+    }
+
+    /**
+     * Render a DRAW SELF as renderSelf does, recording the rendering as the
+     * given Expansion event.  An engine whose renderSelf returns before the
+     * body has been rendered must override this, and finish the event (see
+     * finishExpansion) once it has been.
+     * @param fractal The current fractal
+     * @param newState The state derived for the SELF reference's frame
+     * @param destPt The destination of the DRAW SELF statement
+     * @param event The event, not yet begun
+     * @return The result of renderSelf
+     * @throws FractalException if the body cannot be rendered
+     */
+    protected FractalValue renderSampledSelf(Fractal fractal,
+            FractalState newState, FractalPoint destPt,
+            FractalEvents.Expansion event) throws FractalException {
+        long before = newState.getSegmentCount();
+        event.begin();
+        try {
+            return renderSelf(fractal, newState, destPt);
+        } finally {
+            finishExpansion(event, fractal, newState, before);
+        }
+    }
 
+    /**
+     * Commit an Expansion event for a rendering of the given fractal's body
+     * that has just finished (or been abandoned).
+     * @param event The event, begun when the rendering began
+     * @param fractal The fractal whose body was rendered
+     * @param newState The state in which it was rendered
+     * @param before The number of segments drawn on the state's path before
+     * the rendering began
+     */
+    protected static void finishExpansion(FractalEvents.Expansion event,
+            Fractal fractal, FractalState newState, long before) {
+        event.fractal = fractal.getName();
+        event.level = newState.getLevel();
+        event.scale = newState.getCurrentScale();
+        event.segments = newState.getSegmentCount() - before;
+        event.commit();
+    }
 
     @Override
     public FractalValue visitASTDrawSelf(ASTDrawSelf form, FractalState state) throws FractalException {
@@ -117,20 +377,10 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
         ASTExp srcExp = form.getSrcExp();
         ASTExp destExp = form.getDestExp();
 
-        // compute the source and destination points
-        FractalPoint srcPt = state.getCurrentPoint(); 
+        // compute the destination point (the source is always HERE)
         FractalPoint destPt = destExp.visit(this, state).pointValue();
-
-        if (state.isResolvable()) {
-                FractalState newState = state.deriveState(srcPt, destPt);
-                Fractal fractal = state.getCurrentFractal();
-                FractalValue result = fractal.getBody().visit(this, newState);
-       
-            return combine(destPt, result);
-        } else {
-            state.lineTo(destPt);
-            return destPt;
-        }
+        FractalValue result = drawSelf(destPt.getX(), destPt.getY(), state);
+        return result == null ? destPt : result;
         //+++++++++++
         // if the current coordinate frame is resolvable for the current depth
         // then derive a new state scaled to the source and destination points
@@ -158,8 +408,13 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
 
     @Override
     public FractalValue visitASTStmtClear(ASTStmtClear form, FractalState state) throws FractalException {
-        // implement this
+        FractalEvents.Clear event = new FractalEvents.Clear();
+        if (event.isEnabled()) {
+            event.segments = state.getSegmentCount();
+            event.begin();
+        }
         state.clear();
+        event.commit();
         return FractalValue.NO_VALUE;
     }
 
@@ -183,7 +438,7 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
     public FractalValue visitASTStmtLet(ASTStmtLet form, FractalState state) throws FractalException {
         // implement me
         // bind the variable to the value of the expression in the current state
-        state.bind(form.getId(), form.getPtExp().visit(this, state));
+        state.bind(form.getSlot(), form.getPtExp().visit(this, state));
         return FractalValue.NO_VALUE;
     }
 
@@ -229,12 +484,12 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
 
     @Override
     public FractalValue visitASTExpVar(ASTExpVar form, FractalState state) throws FractalException {
-        return state.lookup(form.getVar());
+        return state.lookup(form.getSlot());
     }
 
     @Override
     public FractalValue visitASTExpPtVar(ASTExpPtVar form, FractalState state) throws FractalException {
-        return state.lookup(form.getVar());
+        return state.lookup(form.getSlot());
     } 
 
     @Override
@@ -243,9 +498,7 @@ public class FractalEvaluator extends AbstractFractalEvaluator {
         FractalValue angleVal = angleExp.visit(this, state);
         double angle = angleVal.realValue();
 
-        return new FractalPoint(Math.cos(angle), Math.sin(angle));
-        // don't forget to convert the angle to radians
-        // eventually return the point (cos angle, sin angle)
+        return FractalPoint.rotation(angle);
     }
 
     @Override
@@ -0,0 +1,122 @@
+package fractal.semantics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events emitted while FRACTAL programs are parsed
+ * and evaluated, so that the phases of a rendering can be lined up with the
+ * GC and allocation events of the same recording.  When no recording is in
+ * progress, an event costs no more than the test of isEnabled.
+ *
+ * Expansions of DRAW SELF statements are far too numerous to record each one,
+ * so only one in SAMPLING of them (counted over all evaluators) is recorded.
+ * They are also too numerous to make an event for each only to find that it
+ * is disabled (the allocation is not always optimised away), so evaluators
+ * ask sampleExpansion first.  (The template engine only counts the expansions
+ * it makes one at a time, not those already laid out in its templates.)
+ *
+ * @author newts
+ */
+public final class FractalEvents {
+
+    /** One in this many expansions of a DRAW SELF is recorded */
+    public static final int SAMPLING = 1024;
+
+    private static final EventType EXPANSION =
+            EventType.getEventType(Expansion.class);
+
+    /** the number of expansions seen (not exact when threads race) */
+    private static int expansions = 0;
+
+    private FractalEvents() {
+    }
+
+    /**
+     * @return true if the current expansion of a DRAW SELF should be recorded
+     * (as an Expansion event)
+     */
+    static boolean sampleExpansion() {
+        return EXPANSION.isEnabled() && ++expansions % SAMPLING == 0;
+    }
+
+    @Name("fractal.Parse")
+    @Label("Parse")
+    @Category("Fractal")
+    @Description("The parsing of a FRACTAL program")
+    public static class Parse extends Event {
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    @Name("fractal.Definition")
+    @Label("Fractal Definition")
+    @Category("Fractal")
+    @Description("The evaluation of a fractal definition")
+    @StackTrace(false)
+    public static class Definition extends Event {
+
+        @Label("Fractal")
+        public String fractal;
+    }
+
+    @Name("fractal.Draw")
+    @Label("Draw Fractal")
+    @Category("Fractal")
+    @Description("The rendering of a top-level DRAW of a fractal")
+    @StackTrace(false)
+    public static class Draw extends Event {
+
+        @Label("Fractal")
+        public String fractal;
+
+        @Label("Screen Scale")
+        @Description("The length of the DRAW on the screen")
+        public double scale;
+
+        @Label("Resolution")
+        public float resolution;
+
+        @Label("Segments")
+        public long segments;
+    }
+
+    @Name("fractal.Clear")
+    @Label("Clear")
+    @Category("Fractal")
+    @Description("A CLEAR of the screen")
+    @StackTrace(false)
+    public static class Clear extends Event {
+
+        @Label("Segments Discarded")
+        public long segments;
+    }
+
+    @Name("fractal.Expansion")
+    @Label("Self Expansion")
+    @Category("Fractal")
+    @Description("A sample of the expansions of DRAW SELF statements")
+    @StackTrace(false)
+    public static class Expansion extends Event {
+
+        @Label("Fractal")
+        public String fractal;
+
+        @Label("Level")
+        @Description("The level of the body drawn by the expansion")
+        public int level;
+
+        @Label("Screen Scale")
+        @Description("The length on the screen of the body's unit vector")
+        public double scale;
+
+        @Label("Segments")
+        public long segments;
+    }
+}
@@ -0,0 +1,242 @@
+package fractal.semantics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A collector of statistics about the renders done by an evaluator (see
+ * AbstractFractalEvaluator.setRenderStats), published through JMX as a
+ * FractalRenderStatsMXBean (see register).  Each top-level DRAW of a fractal
+ * is recorded as a RenderRecord, giving the number of states derived, the
+ * numbers of DRAW SELF statements that were expanded or drawn as lines (or
+ * culled), the deepest level reached, the number of segments drawn, the
+ * wall time taken, and the CPU time spent at each level.
+ *
+ * The time at each level is measured between successive DRAW SELF statements
+ * drawn by a thread, and attributed to the level of the body containing the
+ * later one, so it includes the drawing of lines and the evaluation of points
+ * at that level.  It is summed over the threads that draw, so it is CPU time
+ * (and may exceed the wall time), not the time by which the level delayed the
+ * render.  Counters may be updated by several threads at once (as the
+ * parallel engine does), but the top-level DRAWs must be recorded one at a
+ * time.
+ *
+ * The template engine expands the bodies that fit in a template without
+ * visiting their DRAW SELF statements, so it counts them all at once (see
+ * stamped).  The counts of the parallel engine include the work it redoes
+ * when a speculation fails.
+ *
+ * @author newts
+ */
+public class FractalRenderStats implements FractalRenderStatsMXBean {
+
+    /** The name under which the stats are registered by default */
+    public static final String OBJECT_NAME = "fractal:type=FractalRenderStats";
+
+    /** The number of recent records kept */
+    private static final int RECENT = 32;
+
+    /** The number of levels whose CPU times are kept separately (deeper ones are
+     * attributed to the last) */
+    private static final int LEVELS = 64;
+
+    private final LongAdder derived;
+    private final LongAdder expanded;
+    private final LongAdder lines;
+    private final LongAdder culled;
+    private final AtomicInteger maxLevel;
+    private final LongAdder[] levelCpuNanos;
+    /** the time of each thread's last DRAW SELF */
+    private final ThreadLocal<long[]> lastTick;
+
+    // the render in progress
+    private String fractal;
+    private int maxDepth;
+    private long startSegments;
+    private volatile long startNanos;
+
+    private final ArrayDeque<RenderRecord> recent;
+    private final TreeMap<String, RenderRecord> totals;
+    private long renders;
+
+    public FractalRenderStats() {
+        derived = new LongAdder();
+        expanded = new LongAdder();
+        lines = new LongAdder();
+        culled = new LongAdder();
+        maxLevel = new AtomicInteger();
+        levelCpuNanos = new LongAdder[LEVELS];
+        for (int i = 0; i < LEVELS; i++) {
+            levelCpuNanos[i] = new LongAdder();
+        }
+        lastTick = ThreadLocal.withInitial(() -> new long[1]);
+        recent = new ArrayDeque<>();
+        totals = new TreeMap<>();
+        renders = 0;
+    }
+
+    /**
+     * Register these stats with the platform MBean server under the given
+     * name (replacing any registered under it already).
+     * @param name The object name, e.g. OBJECT_NAME
+     * @throws JMException if the name is malformed, or the registration fails
+     */
+    public void register(String name) throws JMException {
+        var server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(this, objectName);
+    }
+
+    /**
+     * Begin recording a top-level DRAW.
+     * @param name The name of the fractal being drawn
+     * @param state The state in which the DRAW is evaluated
+     */
+    public void startRender(String name, FractalState state) {
+        derived.reset();
+        expanded.reset();
+        lines.reset();
+        culled.reset();
+        maxLevel.set(state.getLevel());
+        for (LongAdder nanos : levelCpuNanos) {
+            nanos.reset();
+        }
+        fractal = name;
+        maxDepth = state.getMaxDepth();
+        startSegments = state.getSegmentCount();
+        startNanos = System.nanoTime();
+        lastTick.get()[0] = startNanos;
+    }
+
+    /**
+     * Finish recording the top-level DRAW begun by startRender.
+     * @param state The state in which the DRAW was evaluated
+     */
+    public void finishRender(FractalState state) {
+        long wall = System.nanoTime() - startNanos;
+        int deepest = maxLevel.get();
+        long[] levels = new long[Math.min(deepest, LEVELS - 1) + 1];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = levelCpuNanos[i].sum();
+        }
+        RenderRecord record = new RenderRecord(fractal, derived.sum(),
+                expanded.sum(), lines.sum(), culled.sum(), deepest, maxDepth,
+                state.getSegmentCount() - startSegments, wall, levels);
+        synchronized (this) {
+            renders++;
+            if (recent.size() == RECENT) {
+                recent.removeFirst();
+            }
+            recent.addLast(record);
+            totals.merge(fractal, record, RenderRecord::plus);
+        }
+    }
+
+    /**
+     * Count a state derived for the frame of a fractal body.
+     */
+    public void derived() {
+        derived.increment();
+    }
+
+    /**
+     * Count a DRAW SELF that draws the body again, one level deeper.
+     * @param level The level of the body containing the DRAW SELF
+     */
+    public void selfExpanded(int level) {
+        tick(level);
+        expanded.increment();
+        if (level + 1 > maxLevel.get()) {
+            maxLevel.accumulateAndGet(level + 1, Math::max);
+        }
+    }
+
+    /**
+     * Count a DRAW SELF that is drawn as a line.
+     * @param level The level of the body containing the DRAW SELF
+     */
+    public void selfLine(int level) {
+        tick(level);
+        lines.increment();
+    }
+
+    /**
+     * Count the DRAW SELF statements of a body that was drawn to the given
+     * number of levels all at once (as the template engine does), as though
+     * each had been expanded or drawn as a line in turn.
+     * @param level The level of the body
+     * @param levels The number of levels to which it was resolved
+     * @param selves The number of DRAW SELF statements in the body
+     */
+    public void stamped(int level, int levels, int selves) {
+        tick(level);
+        long count = selves;
+        long expansions = 0;
+        for (int k = 0; k < levels; k++) {
+            expansions += count;
+            count *= selves;
+        }
+        derived.add(expansions);
+        expanded.add(expansions);
+        lines.add(count);
+        if (levels > 0 && level + levels > maxLevel.get()) {
+            maxLevel.accumulateAndGet(level + levels, Math::max);
+        }
+    }
+
+    /**
+     * Count a fractal that was not drawn because it lay outside the viewport.
+     * @param level The level of the body containing the DRAW
+     */
+    public void culled(int level) {
+        tick(level);
+        culled.increment();
+    }
+
+    private void tick(int level) {
+        long now = System.nanoTime();
+        long[] last = lastTick.get();
+        // (a thread's first tick in a render is timed from its start)
+        long since = now - Math.max(last[0], startNanos);
+        last[0] = now;
+        levelCpuNanos[Math.min(level, LEVELS - 1)].add(since);
+    }
+
+    @Override
+    public synchronized long getRenders() {
+        return renders;
+    }
+
+    @Override
+    public synchronized RenderRecord getLastRender() {
+        return recent.peekLast();
+    }
+
+    @Override
+    public synchronized List<RenderRecord> getRecentRenders() {
+        return new ArrayList<>(recent);
+    }
+
+    @Override
+    public synchronized Map<String, RenderRecord> getTotalsByFractal() {
+        return new TreeMap<>(totals);
+    }
+
+    @Override
+    public synchronized void reset() {
+        renders = 0;
+        recent.clear();
+        totals.clear();
+    }
+}
@@ -0,0 +1,43 @@
+package fractal.semantics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of FractalRenderStats, through which the
+ * statistics of the renders done by an evaluator can be inspected with any
+ * JMX client (e.g. jconsole), while it runs.
+ *
+ * @author newts
+ */
+public interface FractalRenderStatsMXBean {
+
+    /**
+     *
+     * @return The number of top-level DRAW statements recorded
+     */
+    long getRenders();
+
+    /**
+     *
+     * @return The record of the last top-level DRAW (null if none)
+     */
+    RenderRecord getLastRender();
+
+    /**
+     *
+     * @return The records of the most recent top-level DRAWs, oldest first
+     */
+    List<RenderRecord> getRecentRenders();
+
+    /**
+     *
+     * @return The totals of the records, by the name of the fractal drawn
+     */
+    Map<String, RenderRecord> getTotalsByFractal();
+
+    /**
+     * Discard all the records.
+     */
+    void reset();
+}
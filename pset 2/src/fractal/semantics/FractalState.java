@@ -5,6 +5,7 @@
 package fractal.semantics;
 
 import fractal.syntax.ASTStmtSequence;
+import fractal.sys.FractalException;
 import fractal.sys.FractalUnboundException;
 import fractal.values.Fractal;
 import fractal.values.FractalPoint;
@@ -14,9 +15,8 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.util.ArrayList;
 import java.util.Stack;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Class for representing all of the contextual information needed to evaluate
@@ -25,7 +25,8 @@ import java.util.logging.Logger;
  *     coordinates
  *  2. The current level (int) to represent the current depth of recursion of 
  *     the fractal
- *  3. The current path (GeneralPath) of lines shown on the screen
+ *  3. The sink (SegmentSink) that receives the lines drawn on the screen,
+ *     which is usually a SegmentStore that keeps them as the current path
  *  4. A hash of that path (PathHash) to succinctly capture the entire path 
  *     drawn to support efficient comparison.
  *  5. A stack of active fractals (Stack<Fractal>). A reference to SELF is 
@@ -47,7 +48,8 @@ import java.util.logging.Logger;
  * The path and its hash are managed internally by this class. It is therefore 
  * imperative that all line segments drawn are done using the drawing commands
  * (lineTo and moveTo) provided by this class. Direct modifications to the 
- * internal path will lead to incorrect hashes. 
+ * internal path will lead to incorrect hashes.  The hash is always computed,
+ * but whether the path itself is kept (and where) depends on the sink.
  * 
  * @author newts
  */
@@ -64,21 +66,58 @@ public class FractalState {
     float resolution = 0.1F; 
     
     /**
-     * The max depth that any fractal will be rendered. This is present as a 
-     * stop gap measure to prevent stack overflows in very high resolution 
-     * situations.
+     * The default max depth that any fractal will be rendered. This is present
+     * as a stop gap measure to prevent stack overflows in very high resolution
+     * situations when the recursive evaluator is used.
      */
-    final int maxDepth = 15;
+    public static final int DEFAULT_MAX_DEPTH = 15;
+
+    /**
+     * A max depth that places no practical limit on the level of a fractal,
+     * leaving the resolution as the only criterion for terminating it.  Only
+     * evaluators that do not expand fractals on the Java stack should use it.
+     */
+    public static final int UNBOUNDED_DEPTH = Integer.MAX_VALUE;
+
+    /**
+     * The max depth that any fractal will be rendered.
+     */
+    int maxDepth = DEFAULT_MAX_DEPTH;
+
+    /**
+     * The visible region of the screen, as {xlo, ylo, xhi, yhi} in screen
+     * coordinates, or null if everything is to be drawn.  Fractals lying
+     * entirely outside it need not be drawn (see isVisible).  The array is
+     * shared by derived states, but never modified.
+     */
+    float[] viewport;
     
     // FractalPoint origin;
     // FractalPoint xUnit; 
     
     /**
-     * The transform that converts coordinates in the current coordinate
-     * frame to screen coordinates (ie the coordinates expected by the component
-     * that is rendering the path).
+     * The frame that converts coordinates in the current coordinate frame to
+     * screen coordinates (ie the coordinates expected by the component that is
+     * rendering the path), or to the coordinates expected by the base
+     * transform if there is one.
+     */
+    final protected SimilarityFrame frame;
+
+    /**
+     * The transform applied after the frame to obtain screen coordinates, when
+     * the initial coordinate frame is not a similarity (null otherwise).
+     */
+    protected AffineTransform baseTransform;
+
+    /**
+     * The length in screen coordinates of a unit vector in the current frame.
+     * It is measured (see measureScale) once, when the state's frame is set,
+     * so it never needs to be recomputed from the frame.  (It is not the
+     * product of the parent's scale and the length of the segment the frame
+     * spans, which rounds differently, and so would change whether frames
+     * whose scale is on the resolution are resolvable.)
      */
-    protected AffineTransform toScreenTransform;
+    protected double scale;
     
     /**
      * The current depth of the self-similarity level of the current fractal 
@@ -88,15 +127,22 @@ public class FractalState {
     // These below are the shared components across all derived states.
     
     /**
-     * The path traced out by the fractal.  All coordinates stored here should
-     * be in screen device coordinates (i.e. they are "absolute" coordinates).
+     * The sink that receives every segment drawn, and every move, in screen
+     * device coordinates (i.e. "absolute" coordinates).  It is null if only
+     * the hash of the path is wanted.
      */
-    final protected GeneralPath path;
+    final protected SegmentSink sink;
+
+    /**
+     * The path traced out by the fractal, if the sink keeps it (null if not).
+     * All coordinates stored here are screen device coordinates.
+     */
+    final protected SegmentStore path;
     
     /**
      * The hash of the current path. Reset after each CLEAR command is executed.
      */
-    protected PathHash pathHash;
+    final protected PathHash pathHash;
     
     /**
      * The sequence of most recent fractals being drawn in reverse order of
@@ -112,8 +158,35 @@ public class FractalState {
      */
     final protected Environment<FractalValue> env;
 
-    private FractalState(GeneralPath path, PathHash pathHash, Stack<Fractal> fracStack, Environment<FractalValue> env){
-        this.path = path;
+    /**
+     * Space for mapping points to screen coordinates without allocating. It
+     * is shared by all states drawing on the same path.
+     */
+    final private double[] scratch;
+
+    /**
+     * The states made by derivePooledState, indexed by level.  Like the 
+     * scratch space, it is shared by all states drawing on the same path.
+     */
+    final private ArrayList<FractalState> pool;
+
+    /**
+     * The current point of the path, in screen coordinates.  It is shared by
+     * all states drawing on the same path.
+     */
+    final private Pen pen;
+
+    private FractalState(SegmentSink sink, PathHash pathHash, Stack<Fractal> fracStack, Environment<FractalValue> env){
+        this(sink, pathHash, fracStack, env, new double[2], new ArrayList<>(), new Pen());
+    }
+
+    private FractalState(SegmentSink sink, PathHash pathHash, Stack<Fractal> fracStack, Environment<FractalValue> env, double[] scratch, ArrayList<FractalState> pool, Pen pen){
+        this.frame = new SimilarityFrame();
+        this.scratch = scratch;
+        this.pool = pool;
+        this.pen = pen;
+        this.sink = sink;
+        this.path = findStore(sink);
         this.pathHash = pathHash;
         this.fractalStack = fracStack;
         this.env = env;
@@ -124,22 +197,33 @@ public class FractalState {
      * @param state
      */
     protected FractalState(FractalState state) {
-        this(state.path, state.pathHash, state.fractalStack, state.env);
-        this.toScreenTransform = (AffineTransform) state.toScreenTransform.clone();
+        this(state.sink, state.pathHash, state.fractalStack, state.env, state.scratch, state.pool, state.pen);
+        this.frame.setTo(state.frame);
+        this.baseTransform = state.baseTransform;
+        this.scale = state.scale;
         this.level = state.level;
+        this.resolution = state.resolution;
+        this.maxDepth = state.maxDepth;
+        this.viewport = state.viewport;
     }
     
     /**
      * Derive a state from the given one transforming its coordinate frame, and
      * incrementing its rendering level by 1.
      * @param coordTransform The transform to (post) concatenate to that of the
-     * parent.
+     * parent.  It must be a similarity (a rotation, uniform scaling and
+     * translation), as produced by mapRigidlyXAxisTo.
      * @param parent The base state from which the new one will derive (changing
      * only the transform and the level)
      */
     public FractalState(FractalState parent, AffineTransform coordTransform) {
         this(parent);
-        toScreenTransform.concatenate(coordTransform);
+        if (!SimilarityFrame.isSimilarity(coordTransform)) {
+            throw new IllegalArgumentException("Coordinate frames must be similarities");
+        }
+        frame.concatenate(coordTransform.getScaleX(), coordTransform.getShearY(),
+                coordTransform.getTranslateX(), coordTransform.getTranslateY());
+        scale = measureScale();
         this.level += 1;
         initPath();
     }
@@ -153,19 +237,54 @@ public class FractalState {
      * @param xUnit The unit vector in the X axis direction.
      */    
     public FractalState(FractalState parent, FractalPoint origin, FractalPoint xUnit) {
-        this(parent, mapRigidlyXAxisTo(origin, xUnit));
+        this(parent);
+        frame.concatenateRigidMap(origin.getX(), origin.getY(), 
+                xUnit.getX(), xUnit.getY());
+        scale = measureScale();
+        this.level += 1;
+        initPath();
     }
     
     /**
      * Create a default FRACTAL state that has an identity coordinate transform,
      * is at rendering level 0, has its last drawn point at the origin and has
      * a fresh environment, path and fractal stack. 
+     * If the given transformation is not a similarity, then it is kept and 
+     * applied after the coordinate frame, so the screen coordinates of 
+     * points may be rounded slightly differently from a single transform.
      * @param coordXform The transformation to convert frame coordinates to 
      * screen coordinates.
      */
     public FractalState(AffineTransform coordXform) {
-        this(new GeneralPath(), new PathHash(), new Stack<>(), new Environment<>());
-        this.toScreenTransform = coordXform;
+        this(coordXform, new SegmentStore());
+    }
+
+    /**
+     * Create a default FRACTAL state (as above) that passes what it draws to
+     * the given sink, which is cleared first.  The sink may be a store in 
+     * which to keep the path (a MappedSegmentStore, for instance, allows paths
+     * larger than the heap to be drawn), a PathHash if only the hash of the 
+     * path is needed (it then becomes this state's hash), or any other sink, 
+     * in which case the path is not kept unless the sink is a TeeSink that 
+     * includes a store.
+     * @param coordXform The transformation to convert frame coordinates to 
+     * screen coordinates.
+     * @param sink The sink to receive the path
+     */
+    public FractalState(AffineTransform coordXform, SegmentSink sink) {
+        this(sink instanceof PathHash ? null : sink, 
+                sink instanceof PathHash hash ? hash : new PathHash(), 
+                new Stack<>(), new Environment<>());
+        if (this.sink != null) {
+            this.sink.clear();
+        }
+        pathHash.clear();
+        if (SimilarityFrame.isSimilarity(coordXform)) {
+            this.frame.setTo(new SimilarityFrame(coordXform));
+        } else {
+            this.baseTransform = new AffineTransform(coordXform);
+        }
+        this.scale = measureScale();
         this.level = 0;
         initEnv();
         initPath();
@@ -178,7 +297,11 @@ public class FractalState {
      * @param xUnit The end point of the unit vector in the direction of the X-axis.
      */
     public FractalState(FractalPoint origin, FractalPoint xUnit) {
-        this(mapRigidlyXAxisTo(origin, xUnit));
+        this(new AffineTransform());
+        frame.concatenateRigidMap(origin.getX(), origin.getY(), 
+                xUnit.getX(), xUnit.getY());
+        scale = measureScale();
+        clear();
     }
     
     /**
@@ -197,8 +320,25 @@ public class FractalState {
     }
     
     private void initPath() {
-        Point2D screenOrigin = getScreenOrigin();
-        this.path.moveTo(screenOrigin.getX(), screenOrigin.getY());
+        moveTo(0F, 0F);
+    }
+
+    /**
+     * @return The store of the path among those that the given sink passes
+     * segments to, or null if there is none.
+     */
+    private static SegmentStore findStore(SegmentSink sink) {
+        if (sink instanceof SegmentStore store) {
+            return store;
+        } else if (sink instanceof TeeSink tee) {
+            for (SegmentSink s : tee.getSinks()) {
+                SegmentStore store = findStore(s);
+                if (store != null) {
+                    return store;
+                }
+            }
+        }
+        return null;
     }
     
     /**
@@ -230,7 +370,8 @@ public class FractalState {
      * line segment. If the current frame's length scale falls below this 
      * threshold, then drawing a fractal (either by using the fractal's name
      * or the SELF keyword would result in a line segment between the given
-     * coordinates.
+     * coordinates.  States derived from this one inherit the setting, so it
+     * decides where every level of a fractal stops, not only the first.
      * @param res The desired threshold.
      */
     public void setResolution(float res) {
@@ -246,6 +387,144 @@ public class FractalState {
         return resolution;
     }
 
+    /**
+     * Set the deepest level to which a fractal will be rendered, regardless of
+     * the resolution.  States derived from this one inherit the setting.
+     * @param depth The desired max. depth (e.g. DEFAULT_MAX_DEPTH or
+     * UNBOUNDED_DEPTH)
+     */
+    public void setMaxDepth(int depth) {
+        maxDepth = depth;
+    }
+
+    /**
+     *
+     * @return The deepest level to which a fractal will be rendered.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Restrict drawing to the given region of the screen: a fractal that is
+     * known to lie entirely outside it is skipped, rather than drawn, though
+     * its result is the same (see passOver).  Lines extend beyond their ends
+     * by half their width, so the region should include that margin.  States
+     * derived from this one inherit the setting.
+     * @param xlo The least visible screen x-coordinate
+     * @param ylo The least visible screen y-coordinate
+     * @param xhi The greatest visible screen x-coordinate
+     * @param yhi The greatest visible screen y-coordinate
+     */
+    public void setViewport(float xlo, float ylo, float xhi, float yhi) {
+        viewport = new float[]{xlo, ylo, xhi, yhi};
+    }
+
+    /**
+     * Draw everything, wherever it lies on the screen.
+     */
+    public void clearViewport() {
+        viewport = null;
+    }
+
+    /**
+     *
+     * @return The visible region as {xlo, ylo, xhi, yhi} in screen 
+     * coordinates, or null if there is none.
+     */
+    public float[] getViewport() {
+        return viewport == null ? null : viewport.clone();
+    }
+
+    /**
+     *
+     * @return true if drawing is restricted to a viewport
+     */
+    public boolean hasViewport() {
+        return viewport != null;
+    }
+
+    /**
+     * Determine whether a fractal with the given bound, drawn in this frame
+     * from start to stop, might be visible.
+     * @param bound The bound of the fractal's body (null if unknown)
+     * @param start The start of the segment spanned by the fractal's frame
+     * @param stop The end of the segment spanned by the fractal's frame
+     * @return false only if the fractal certainly lies outside the viewport
+     */
+    public boolean isVisible(FractalBound bound, FractalPoint start, 
+            FractalPoint stop) {
+        if (viewport == null || bound == null || baseTransform != null) {
+            // (a base transform could stretch the bound unevenly)
+            return true;
+        }
+        double sx = start.getX();
+        double sy = start.getY();
+        double dx = stop.getX() - sx;
+        double dy = stop.getY() - sy;
+        double cx = bound.getCentreX();
+        double cy = bound.getCentreY();
+        map(sx + cx * dx - cy * dy, sy + cx * dy + cy * dx);
+        double r = bound.getRadius() * Math.hypot(dx, dy) * scale;
+        // the distance from the centre to the nearest point of the viewport
+        double ex = Math.max(0, Math.max(viewport[0] - scratch[0], 
+                scratch[0] - viewport[2]));
+        double ey = Math.max(0, Math.max(viewport[1] - scratch[1], 
+                scratch[1] - viewport[3]));
+        return !(ex * ex + ey * ey > r * r);
+    }
+
+    /**
+     * Skip drawing a fractal with the given bound from start to stop (because
+     * it is not visible), if its result can be computed without drawing it.
+     * If it can, the current point is moved to where the drawing would have
+     * left it.  (A fractal is only found to be invisible if this state has
+     * no base transform, so its frames' scales are computed as here.)
+     * @param bound The bound of the fractal's body
+     * @param start The start of the segment spanned by the fractal's frame
+     * @param stop The end of the segment spanned by the fractal's frame
+     * @return The result of rendering the fractal's body in that frame, or
+     * null if the fractal must be drawn after all (nothing is done then)
+     */
+    public FractalPoint passOver(FractalBound bound, FractalPoint start, 
+            FractalPoint stop) {
+        return passOver(bound, start, stop, maxDepth);
+    }
+
+    /**
+     * Skip drawing a fractal as passOver(bound, start, stop) does, but as
+     * though it were to be drawn to no more than the given depth (for
+     * evaluators that draw fractals a level at a time, such as
+     * ExpansionTree).
+     * @param depth The max. depth to which the fractal would be drawn
+     */
+    FractalPoint passOver(FractalBound bound, FractalPoint start, 
+            FractalPoint stop, int depth) {
+        double sx = start.getX();
+        double sy = start.getY();
+        double dx = stop.getX() - sx;
+        double dy = stop.getY() - sy;
+        double childScale = derivedScale(start, stop);
+        double cx = bound.getCentreX();
+        double cy = bound.getCentreY();
+        map(sx + cx * dx - cy * dy, sy + cx * dy + cy * dx);
+        double size = Math.max(Math.abs(scratch[0]), Math.abs(scratch[1]))
+                + bound.getRadius() * childScale;
+        FractalPoint result = bound.resultAt(childScale, level + 1,
+                resolution, depth, size);
+        if (result == null) {
+            return null;
+        }
+        if (bound.exitsAtX()) {
+            moveTo(stop);
+        } else {
+            double ex = bound.getExitX();
+            double ey = bound.getExitY();
+            moveTo(sx + ex * dx - ey * dy, sy + ex * dy + ey * dx);
+        }
+        return result;
+    }
+
     /**
      *
      * @return The current level of the fractal (the depth of SELF references
@@ -262,19 +541,56 @@ public class FractalState {
      * transformation (such drawing a line, or moving to a point) are supported 
      * directly as methods on this instance.
      * @return The current transform for converting fractal frame coordinates to
-     * screen coordinates.
+     * screen coordinates.  (Changes to it do not affect this state.)
      */
     public AffineTransform getTransform() {
-        return toScreenTransform;
+        AffineTransform result = frame.toAffineTransform();
+        if (baseTransform != null) {
+            result.preConcatenate(baseTransform);
+        }
+        return result;
     }
     
     /**
      *
-     * @return The path of points traced out by this fractal.
+     * @return The path of points traced out by this fractal, as a GeneralPath
+     * that is kept up to date as more points are drawn (see 
+     * SegmentStore.getPath).
+     * @throws IllegalStateException if this state's sink does not keep the
+     * path
      */
     public GeneralPath getShape() {
+        if (path == null) {
+            throw new IllegalStateException("The path is not being kept");
+        }
+        return path.getPath();
+    }
+
+    /**
+     *
+     * @return The store of the points traced out by this fractal, or null if
+     * this state's sink does not keep them.
+     */
+    public SegmentStore getSegments() {
         return path;
     }
+
+    /**
+     *
+     * @return The sink to which this state passes what it draws (null if it
+     * only hashes it)
+     */
+    public SegmentSink getSink() {
+        return sink;
+    }
+
+    /**
+     *
+     * @return The location of the current point in screen coordinates
+     */
+    public Point2D getScreenPoint() {
+        return new Point2D.Float(pen.sx, pen.sy);
+    }
     
     /**
      * Lookup the given identifier and return its current value.
@@ -286,6 +602,18 @@ public class FractalState {
     public FractalValue lookup(String id) throws FractalUnboundException {
         return env.get(id);
     }
+
+    /**
+     * Lookup the identifier with the given symbol id (as resolved by the
+     * parser, see SymbolTable) and return its current value.
+     * @param slot The symbol id of the identifier being referenced.
+     * @return The result bound to that identifier
+     * @throws FractalUnboundException if that identifier is not bound within
+     * the current state.
+     */
+    public FractalValue lookup(int slot) throws FractalUnboundException {
+        return env.get(slot);
+    }
     
     /**
      * Create a new binding for the given variable to the given value.  If the 
@@ -296,19 +624,69 @@ public class FractalState {
     public void bind(String id, FractalValue val) {
         env.put(id, val);
     }
+
+    /**
+     * Create a new binding for the variable with the given symbol id.
+     * @param slot The symbol id of the variable being bound.
+     * @param val The value being associated with the variable.
+     * @see #bind(String, FractalValue)
+     */
+    public void bind(int slot, FractalValue val) {
+        env.put(slot, val);
+    }
     
     /**
-     * Compute the scale of the current coordinate transformation in screen 
+     * Return the scale of the current coordinate transformation in screen 
      * coordinates.  This is the length in screen coordinates of a unit-length
-     * vector in the current frame.
+     * vector in the current frame.  It is maintained as states are derived,
+     * so this is a constant time operation.
      * @return The length of a unit vector in the current fractal frame after 
      * it is mapped to screen coordinates. 
      */
     public double getCurrentScale() {
-        Point2D originImg = toScreenTransform.transform(ORIGIN, null);
-        Point2D xUnitImg = toScreenTransform.transform(X_UNIT_VEC, null);
-        return Point2D.distance(originImg.getX(), originImg.getY(), 
-                                xUnitImg.getX(), xUnitImg.getY());
+        return scale;
+    }
+
+    /**
+     * Measure the scale of the current frame by mapping the origin and unit X
+     * vector to the screen.
+     * @return The distance between the screen images of those points
+     */
+    private double measureScale() {
+        return measureScale(frame);
+    }
+
+    /**
+     * Measure the scale of the given frame (followed by the base transform,
+     * if there is one) as measureScale does.
+     */
+    private double measureScale(SimilarityFrame f) {
+        // the images are rounded to single precision, as they always have been
+        f.transform(0, 0, scratch);
+        if (baseTransform != null) {
+            baseTransform.transform(scratch, 0, scratch, 0, 1);
+        }
+        float ox = (float) scratch[0];
+        float oy = (float) scratch[1];
+        f.transform(1, 0, scratch);
+        if (baseTransform != null) {
+            baseTransform.transform(scratch, 0, scratch, 0, 1);
+        }
+        return Point2D.distance(ox, oy, (float) scratch[0], (float) scratch[1]);
+    }
+
+    /**
+     * Measure the scale of the frame that deriveState(start, stop) would
+     * make, exactly as that state would measure it.
+     * @param start The point where the origin of the frame would be
+     * @param stop The location of X in the frame
+     * @return The scale of the frame
+     */
+    double derivedScale(FractalPoint start, FractalPoint stop) {
+        SimilarityFrame derived = new SimilarityFrame(frame);
+        derived.concatenateRigidMap(start.getX(), start.getY(), 
+                stop.getX(), stop.getY());
+        return measureScale(derived);
     }
     
     /**
@@ -327,7 +705,93 @@ public class FractalState {
         result.moveTo(FractalPoint.ORIGIN);
         return result;
     }
+
+    /**
+     * Return a state derived from this one exactly as deriveState would do,
+     * except that it is not newly created.  All states drawing on the same
+     * path share a pool of one state per level, and the returned state is
+     * the pool's state for the level below this one, reinitialised.  It is 
+     * therefore only valid until the next call to this method that derives a
+     * state at the same level, which suits the evaluators, since they 
+     * expand fractals depth first and so never need two sibling frames at 
+     * once.
+     * @param start The point where the origin of the new state will be
+     * @param stop The location of X (= (1, 0)) in the new coordinate system
+     * @return The pooled state for the next level, now based on this state
+     */
+    public FractalState derivePooledState(FractalPoint start, FractalPoint stop) {
+        int childLevel = level + 1;
+        while (pool.size() <= childLevel) {
+            pool.add(null);
+        }
+        FractalState result = pool.get(childLevel);
+        if (result == null) {
+            result = new FractalState(this, start, stop);
+            pool.set(childLevel, result);
+        } else {
+            result.frame.setTo(frame);
+            result.frame.concatenateRigidMap(start.getX(), start.getY(), 
+                    stop.getX(), stop.getY());
+            result.baseTransform = baseTransform;
+            result.scale = result.measureScale();
+            result.level = childLevel;
+            result.resolution = resolution;
+            result.maxDepth = maxDepth;
+            result.viewport = viewport;
+            result.initPath();
+        }
+        result.moveTo(FractalPoint.ORIGIN);
+        return result;
+    }
     
+    /**
+     * Create a state with the same coordinate frame, level and bindings as this
+     * one, but with its own path, hash and fractal stack, so that it can be
+     * drawn on concurrently with this one.  The bindings are still shared, so
+     * only forms that do not bind variables should be evaluated w.r.t. the
+     * returned state.
+     * @param pen The location (in screen coordinates) of the current point of
+     * the new state's path.
+     * @return The new state; its path can later be added to this one's with
+     * the append method.
+     */
+    public FractalState fork(Point2D pen) {
+        Stack<Fractal> stack = new Stack<>();
+        stack.addAll(fractalStack);
+        FractalState result = new FractalState(new SegmentStore(), new PathHash(),
+                stack, env);
+        result.frame.setTo(frame);
+        result.baseTransform = baseTransform;
+        result.scale = scale;
+        result.level = level;
+        result.resolution = resolution;
+        result.maxDepth = maxDepth;
+        result.viewport = viewport;
+        result.emitMove((float) pen.getX(), (float) pen.getY());
+        return result;
+    }
+
+    /**
+     * Add the path drawn on a forked state to this state's path (and hash), as
+     * though it had been drawn directly on this state.  Note that the fork's
+     * path always starts with a move (to its initial current point, or to the
+     * target of the first moveTo performed on it), which is added too.
+     * @param fork A state previously created by the fork method of a state
+     * sharing this state's path.
+     */
+    public void append(FractalState fork) {
+        SegmentStore segs = fork.path;
+        for (int i = 0; i < segs.size(); i++) {
+            float x = segs.getX(i);
+            float y = segs.getY(i);
+            if (segs.isDrawn(i)) {
+                emitLine(x, y);
+            } else {
+                emitMove(x, y);
+            }
+        }
+    }
+
     /**
      * Determine whether this state can be further resolved to support a deeper
      * level fractal.
@@ -336,7 +800,7 @@ public class FractalState {
      * yet been reached.
      */
     public boolean isResolvable() {
-        return getCurrentScale() >= getResolution() && level < maxDepth;
+        return scale >= resolution && level < maxDepth;
     }
     
     // **-- Methods for manipulating the path of points --*
@@ -345,10 +809,11 @@ public class FractalState {
      * Clear the path of points accumulated so far.
      */
     public void clear() {
-        path.reset();
-        pathHash = new PathHash();
-        Point2D screenO = getScreenOrigin();
-        path.moveTo(screenO.getX(), screenO.getY());
+        if (sink != null) {
+            sink.clear();
+        }
+        pathHash.clear();
+        initPath();
     }
     
     /**
@@ -359,6 +824,15 @@ public class FractalState {
     public long getPathHash() {
         return pathHash.getHash();
     }
+
+    /**
+     *
+     * @return The number of segments drawn on the path since it was last
+     * cleared
+     */
+    public long getSegmentCount() {
+        return pathHash.getSegments();
+    }
     
     public Point2D getPathResultant() {
         return pathHash.getHashPt();
@@ -371,8 +845,19 @@ public class FractalState {
      * @return The image of the point in the screen's coordinate system.
      */
     public Point2D toScreen(FractalPoint p) {
-        Point2D.Float pt = new Point2D.Float(p.getX(), p.getY());
-        return toScreenTransform.transform(pt, null);
+        map(p.getX(), p.getY());
+        return new Point2D.Float((float) scratch[0], (float) scratch[1]);
+    }
+
+    /**
+     * Map the point (x, y) in the current frame to the screen, leaving its 
+     * (unrounded) screen coordinates in the scratch array.
+     */
+    private void map(double x, double y) {
+        frame.transform(x, y, scratch);
+        if (baseTransform != null) {
+            baseTransform.transform(scratch, 0, scratch, 0, 1);
+        }
     }
     
     /**
@@ -387,34 +872,126 @@ public class FractalState {
      *
      * @return The location of the current point in the current frame's 
      * coordinates.
+     * @throws FractalException if the current frame is degenerate (it was
+     * derived from a segment of zero length), so that no point of the screen
+     * can be located in it
      */
-    public FractalPoint getCurrentPoint() {
+    public FractalPoint getCurrentPoint() throws FractalException {
+        // the pen is mapped back from the screen, exactly as the inverse of
+        // the screen transform would map it, so that HERE is the same point
+        // whichever frame last moved the pen
         try {
-            // return lastPoint;
-            Point2D userSpacePt = toScreenTransform.inverseTransform(path.getCurrentPoint(), null);
-            return new FractalPoint(userSpacePt.getX(), userSpacePt.getY());
+            scratch[0] = pen.sx;
+            scratch[1] = pen.sy;
+            if (baseTransform != null) {
+                baseTransform.inverseTransform(scratch, 0, scratch, 0, 1);
+            }
+            frame.inverseTransform(scratch[0], scratch[1], scratch);
+            return new FractalPoint(scratch[0], scratch[1]);
         } catch (NoninvertibleTransformException ex) {
-            String msg = "Uncrecoverable error: Fractal frame is non-invertible!";
-            Logger.getLogger(FractalState.class.getName()).log(Level.SEVERE, msg, ex);
-            throw new Error(msg);
+            throw new FractalException(
+                    "HERE cannot be located in a degenerate frame", ex);
         }
     }
-    
 
+    /**
+     * Pass a line from the current point to the given screen coordinates to
+     * the hash and the sink, and make it the current point.
+     */
+    private void emitLine(float sx, float sy) {
+        pathHash.lineTo(pen.sx, pen.sy, sx, sy);
+        if (sink != null) {
+            sink.lineTo(pen.sx, pen.sy, sx, sy);
+        }
+        pen.sx = sx;
+        pen.sy = sy;
+    }
+
+    private void emitMove(float sx, float sy) {
+        if (sink != null) {
+            sink.moveTo(sx, sy);
+        }
+        pen.sx = sx;
+        pen.sy = sy;
+    }
 
     /**
      * Draw a line from the current point (HERE) to the given point.
      * @param p The end point of the line segment to be added.
      */
     public void lineTo(FractalPoint p) {
-        var pCoords = toScreen(p);
-        pathHash.addSegment(path.getCurrentPoint(), pCoords);
-        path.lineTo(pCoords.getX(), pCoords.getY());
+        lineTo(p.getX(), p.getY());
     }
     
     public void moveTo(FractalPoint p) {
-        var pCoords = toScreen(p);
-        path.moveTo(pCoords.getX(), pCoords.getY());
+        moveTo(p.getX(), p.getY());
+    }
+
+    /**
+     * Draw a line from the current point to the point with the given
+     * coordinates in the current frame.  Unlike lineTo(FractalPoint), the
+     * coordinates are not rounded to single precision until they have been
+     * mapped to the screen.
+     * @param x The x-coordinate of the end point of the line
+     * @param y The y-coordinate of the end point of the line
+     */
+    public void lineTo(double x, double y) {
+        map(x, y);
+        emitLine((float) scratch[0], (float) scratch[1]);
+    }
+
+    /**
+     * Move the current point to the point with the given coordinates in the
+     * current frame (see lineTo(double, double)).
+     * @param x The x-coordinate of the new current point
+     * @param y The y-coordinate of the new current point
+     */
+    public void moveTo(double x, double y) {
+        map(x, y);
+        emitMove((float) scratch[0], (float) scratch[1]);
+    }
+
+    /**
+     * Draw a line from the current point to the point (x, y) in the current
+     * frame.  This is equivalent to lineTo(new FractalPoint(x, y)), but does
+     * not allocate a point.
+     * @param x The x-coordinate of the end point of the line
+     * @param y The y-coordinate of the end point of the line
+     */
+    public void lineTo(float x, float y) {
+        lineTo((double) x, (double) y);
+    }
+
+    /**
+     * Move the current point to the point (x, y) in the current frame (see 
+     * lineTo(float, float)).
+     * @param x The x-coordinate of the new current point
+     * @param y The y-coordinate of the new current point
+     */
+    public void moveTo(float x, float y) {
+        moveTo((double) x, (double) y);
+    }
+    
+    /**
+     * Draw a line from the current point to the given point, which is already
+     * in screen coordinates (for evaluators that replay segments they have
+     * recorded, such as the RetainedFractalEvaluator).  The current point is then only known on the screen,
+     * so it is located in a frame by inverting the frame, if it is needed.
+     * @param sx The screen x-coordinate of the end point of the line
+     * @param sy The screen y-coordinate of the end point of the line
+     */
+    public void lineToScreen(float sx, float sy) {
+        emitLine(sx, sy);
+    }
+
+    /**
+     * Move the current point to the given point in screen coordinates (see
+     * lineToScreen).
+     * @param sx The screen x-coordinate of the new current point
+     * @param sy The screen y-coordinate of the new current point
+     */
+    public void moveToScreen(float sx, float sy) {
+        emitMove(sx, sy);
     }
     
     // ** -- Methods to manage control flow of fractal invocations
@@ -446,4 +1023,12 @@ public class FractalState {
         return fractalStack.peek();
     }
 
+    /**
+     * The location of a path's current point in screen coordinates.
+     */
+    private static class Pen {
+        float sx;
+        float sy;
+    }
+
 }
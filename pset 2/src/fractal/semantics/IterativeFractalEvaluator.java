@@ -0,0 +1,265 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTDrawLine;
+import fractal.syntax.ASTDrawSelf;
+import fractal.syntax.ASTStatement;
+import fractal.sys.FractalException;
+import fractal.values.Fractal;
+import fractal.values.FractalPoint;
+import fractal.values.FractalValue;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * A FractalEvaluator that expands fractal bodies using an explicit, heap
+ * allocated stack of work records instead of recursing on the Java stack.
+ * Since the depth of a fractal no longer risks a stack overflow, states made
+ * by this evaluator have a much larger max. depth (MAX_DEPTH, unless another
+ * is given) than the recursive evaluator's DEFAULT_MAX_DEPTH, so rendering
+ * usually stops only when the resolution is reached.  The cap is still
+ * finite, so that a body that does not shrink (e.g. one that returns HOME
+ * before it draws itself) stops, with a work stack no deeper than the cap.
+ *
+ * The statements executed, and the order in which they draw, are exactly the
+ * same as for the recursive evaluator, so both produce the same path, hash and
+ * result for the same program rendered at the same depth.  At the default
+ * depths, they differ wherever the recursive evaluator's cap is reached
+ * before the resolution is (at a fine resolution, or for a fractal that
+ * shrinks slowly or not at all).
+ *
+ * Within fractal bodies, the points of DRAW SELF and DRAW LINE statements are
+ * evaluated into primitive registers (see RegisterEvaluator) and results are
+ * accumulated in primitive variables, so no values are allocated for them.
+ * Values are only made when they are bound, or returned from a DRAW.
+ *
+ * @author newts
+ */
+public class IterativeFractalEvaluator extends FractalEvaluator {
+
+    /**
+     * The value returned by a DRAW statement whose body has been scheduled on
+     * the work stack, rather than rendered.  Its result is combined into the
+     * enclosing body when the scheduled work is complete.
+     */
+    private static final FractalValue PENDING = new FractalValue() { };
+
+    /**
+     * A record of the progress made in rendering one fractal body.  Its result
+     * is accumulated in primitive variables, exactly as combine would do it.
+     */
+    private static class Frame {
+        final Fractal fractal;
+        final List<ASTStatement> body;
+        final FractalState state;
+        /** The destination to combine with the result (DRAW SELF only) */
+        final float destX;
+        final float destY;
+        /** The state on which the fractal was started (DRAW fractal only) */
+        final FractalState owner;
+        int cursor;
+        float resultX;
+        float resultY;
+        /** The event recording this frame's rendering, if it was sampled,
+         * and the number of segments drawn before it began */
+        FractalEvents.Expansion event;
+        long before;
+
+        Frame(Fractal fractal, FractalState state, float destX, float destY,
+                FractalState owner) {
+            this.fractal = fractal;
+            this.body = fractal.getBody().getSeq();
+            this.state = state;
+            this.destX = destX;
+            this.destY = destY;
+            this.owner = owner;
+            this.cursor = 0;
+            this.resultX = 0;
+            this.resultY = 0;
+        }
+
+        void combine(float x, float y) {
+            resultX = AbstractFractalEvaluator.combine(resultX, x);
+            resultY = AbstractFractalEvaluator.combine(resultY, y);
+        }
+
+        void combine(FractalValue val) throws FractalException {
+            if (val.isPoint()) {
+                FractalPoint pt = val.pointValue();
+                combine(pt.getX(), pt.getY());
+            }
+        }
+    }
+
+    /**
+     * The default max. depth of the states made by this evaluator.
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private final ArrayDeque<Frame> workStack;
+    private final RegisterEvaluator registers;
+    private final int maxDepth;
+
+    public IterativeFractalEvaluator() {
+        this(MAX_DEPTH);
+    }
+
+    /**
+     * Create an evaluator whose states have the given max. depth.
+     * @param maxDepth The deepest level to which fractals will be rendered
+     */
+    public IterativeFractalEvaluator(int maxDepth) {
+        super();
+        workStack = new ArrayDeque<>();
+        registers = new RegisterEvaluator(this);
+        this.maxDepth = maxDepth;
+    }
+
+    @Override
+    public FractalState mkDefaultState() {
+        FractalState state = super.mkDefaultState();
+        state.setMaxDepth(maxDepth);
+        return state;
+    }
+
+    @Override
+    protected FractalValue renderFractal(Fractal fractal, FractalState state,
+            FractalState newState) throws FractalException {
+        state.startFractal(fractal);
+        return schedule(new Frame(fractal, newState, 0, 0, state));
+    }
+
+    @Override
+    protected FractalValue renderSelf(Fractal fractal, FractalState newState,
+            FractalPoint destPt) throws FractalException {
+        return schedule(new Frame(fractal, newState, destPt.getX(), 
+                destPt.getY(), null));
+    }
+
+    @Override
+    protected FractalValue renderSampledSelf(Fractal fractal,
+            FractalState newState, FractalPoint destPt,
+            FractalEvents.Expansion event) throws FractalException {
+        Frame frame = new Frame(fractal, newState, destPt.getX(),
+                destPt.getY(), null);
+        // (finished when the frame is)
+        frame.event = event;
+        frame.before = newState.getSegmentCount();
+        event.begin();
+        return schedule(frame);
+    }
+
+    /**
+     * Push the given frame onto the work stack. If no rendering was already in
+     * progress, then render until the work stack is empty.
+     * @param frame The frame to be rendered
+     * @return The result of rendering the frame, or PENDING if the frame will
+     * be rendered by a rendering loop already in progress.
+     * @throws FractalException if the frame cannot be rendered
+     */
+    private FractalValue schedule(Frame frame) throws FractalException {
+        boolean idle = workStack.isEmpty();
+        workStack.push(frame);
+        if (idle) {
+            return run();
+        } else {
+            return PENDING;
+        }
+    }
+
+    private FractalValue run() throws FractalException {
+        try {
+            while (true) {
+                Frame top = workStack.peek();
+                if (top.cursor < top.body.size()) {
+                    ASTStatement stmt = top.body.get(top.cursor++);
+                    if (stmt instanceof ASTDrawSelf self) {
+                        drawSelf(self, top);
+                    } else if (stmt instanceof ASTDrawLine line) {
+                        drawLine(line, top);
+                    } else {
+                        FractalValue val = stmt.visit(this, top.state);
+                        if (val != PENDING) {
+                            top.combine(val);
+                        }
+                    }
+                } else {
+                    workStack.pop();
+                    Frame parent = workStack.peek();
+                    if (parent == null) {
+                        return complete(top);
+                    }
+                    finish(top, parent);
+                }
+            }
+        } finally {
+            // only non-empty if rendering was aborted
+            while (!workStack.isEmpty()) {
+                complete(workStack.pop());
+            }
+        }
+    }
+
+    /**
+     * Execute a DRAW SELF statement in the given frame, evaluating its 
+     * destination into registers.  (Equivalent to visitASTDrawSelf.)
+     */
+    private void drawSelf(ASTDrawSelf form, Frame frame) throws FractalException {
+        registers.evalPoint(form.getDestExp(), frame.state);
+        float x = registers.getX();
+        float y = registers.getY();
+        FractalValue val = drawSelf(x, y, frame.state);
+        if (val == null) {
+            frame.combine(x, y);
+        } else if (val != PENDING) {
+            frame.combine(val);
+        }
+    }
+
+    /**
+     * Execute a DRAW LINE statement in the given frame, evaluating its points
+     * into registers.  (Equivalent to visitASTDrawLine.)
+     */
+    private void drawLine(ASTDrawLine form, Frame frame) throws FractalException {
+        FractalState state = frame.state;
+        registers.evalPoint(form.getDestExp(), state);
+        float x = registers.getX();
+        float y = registers.getY();
+        if (form.getSrcExp() != null) {
+            registers.evalPoint(form.getSrcExp(), state);
+            state.moveTo(registers.getX(), registers.getY());
+        }
+        state.lineTo(x, y);
+        frame.combine(x, y);
+    }
+
+    /**
+     * Combine the result of a completed frame (a DRAW SELF) into its parent's.
+     */
+    private void finish(Frame frame, Frame parent) {
+        if (frame.event != null) {
+            finishExpansion(frame.event, frame.fractal, frame.state,
+                    frame.before);
+        }
+        if (frame.owner != null) {
+            frame.owner.stopFractal();
+            parent.combine(frame.resultX, frame.resultY);
+        } else {
+            parent.combine(combine(frame.destX, frame.resultX),
+                    combine(frame.destY, frame.resultY));
+        }
+    }
+
+    private FractalValue complete(Frame frame) {
+        if (frame.event != null) {
+            finishExpansion(frame.event, frame.fractal, frame.state,
+                    frame.before);
+        }
+        FractalPoint result = new FractalPoint(frame.resultX, frame.resultY);
+        if (frame.owner != null) {
+            frame.owner.stopFractal();
+            return result;
+        } else {
+            return combine(new FractalPoint(frame.destX, frame.destY), result);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package fractal.semantics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * A SegmentStore that keeps the coordinates of its points in a file, rather
+ * than on the heap, so that it can hold far more points than would fit in
+ * memory.  Each point is a fixed width record of two floats, and the file is
+ * mapped into memory one region at a time, a new region being mapped each
+ * time the last one fills up.  Only one bit per point (whether it is drawn
+ * to) remains on the heap.
+ *
+ * Regions are never unmapped while the store is in use: a reset store reuses
+ * them.  Closing the store closes (and, if it was temporary, deletes) the
+ * file; the regions themselves are released when they are garbage collected.
+ * On some platforms (Windows, notably), a file cannot be deleted while any
+ * region of it is still mapped, so a temporary file may outlive the store
+ * that closed it, until its regions are collected or the JVM exits.
+ *
+ * @author newts
+ */
+public class MappedSegmentStore extends SegmentStore implements Closeable {
+
+    /**
+     * The default number of points held by each mapped region (8M, which is
+     * 64MB of coordinates).
+     */
+    public static final int DEFAULT_REGION_BITS = 23;
+
+    private static final int RECORD_SIZE = 2 * Float.BYTES;
+
+    private final Path file;
+    private final boolean temporary;
+    private final FileChannel channel;
+    private final int regionBits;
+    private final int regionMask;
+    private final ArrayList<FloatBuffer> regions;
+
+    /**
+     * Create a store backed by a new temporary file, which is deleted when
+     * the store is closed.
+     * @throws IOException if the file cannot be created
+     */
+    public MappedSegmentStore() throws IOException {
+        this(Files.createTempFile("fractal", ".seg"), true, DEFAULT_REGION_BITS);
+    }
+
+    /**
+     * Create a store backed by the given file, which is created if necessary,
+     * and overwritten.  It is left in place when the store is closed.
+     * @param file The file in which to store coordinates
+     * @throws IOException if the file cannot be opened
+     */
+    public MappedSegmentStore(Path file) throws IOException {
+        this(file, false, DEFAULT_REGION_BITS);
+    }
+
+    /**
+     * Create a store backed by the given file.
+     * @param file The file in which to store coordinates
+     * @param temporary true if the file should be deleted when the store is
+     * closed
+     * @param regionBits The log (base 2) of the number of points in a region
+     */
+    MappedSegmentStore(Path file, boolean temporary, int regionBits)
+            throws IOException {
+        super();
+        this.file = file;
+        this.temporary = temporary;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.regionBits = regionBits;
+        this.regionMask = (1 << regionBits) - 1;
+        this.regions = new ArrayList<>();
+        if (temporary) {
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     *
+     * @return The file in which the coordinates are stored
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    protected void put(int i, float px, float py) {
+        int r = i >>> regionBits;
+        if (r == regions.size()) {
+            regions.add(map(r));
+        }
+        int k = 2 * (i & regionMask);
+        FloatBuffer region = regions.get(r);
+        region.put(k, px);
+        region.put(k + 1, py);
+    }
+
+    private FloatBuffer map(int r) {
+        long length = (long) RECORD_SIZE << regionBits;
+        try {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE,
+                    r * length, length);
+            return buf.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to map region " + r
+                    + " of " + file, ioe);
+        }
+    }
+
+    @Override
+    public float getX(int i) {
+        return regions.get(i >>> regionBits).get(2 * (i & regionMask));
+    }
+
+    @Override
+    public float getY(int i) {
+        return regions.get(i >>> regionBits).get(2 * (i & regionMask) + 1);
+    }
+
+    /**
+     * Close the file backing this store (deleting it if it is temporary).
+     * The store must not be used afterwards.  Where a temporary file cannot
+     * be deleted while its regions are still mapped, it is left to be
+     * deleted when the JVM exits (as it was marked to be when created).
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        regions.clear();
+        channel.close();
+        if (temporary) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (FileSystemException fse) {
+                // still mapped: deleteOnExit will try again
+            }
+        }
+    }
+}
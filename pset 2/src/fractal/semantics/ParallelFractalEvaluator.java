@@ -0,0 +1,295 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTDrawLine;
+import fractal.syntax.ASTDrawSelf;
+import fractal.syntax.ASTStatement;
+import fractal.syntax.ASTStmtHome;
+import fractal.sys.FractalException;
+import fractal.values.Fractal;
+import fractal.values.FractalPoint;
+import fractal.values.FractalValue;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A FractalEvaluator that renders the DRAW SELF statements of a fractal's body
+ * concurrently, when the frame of the body is large enough (w.r.t. the
+ * resolution) for the work to be worth sharing.  Each DRAW SELF is rendered
+ * on a fork of the current state (see FractalState.fork) and the forks are
+ * appended to the current state's path in program order, so the path, its
+ * hash and the result are identical to those of the sequential evaluator.
+ *
+ * A DRAW SELF without a FROM clause starts at the current point, which is only
+ * known once its predecessor has been rendered.  Each such statement is
+ * therefore rendered speculatively from the point where its predecessor's
+ * destination lies on the screen.  The speculation is checked as the forks are
+ * appended, and a statement whose predecessor actually ended elsewhere is
+ * rendered again (sequentially) from the correct point.
+ *
+ * Only fractals whose bodies consist solely of DRAW SELF, DRAW LINE and HOME
+ * statements, none of which refer to HERE, are rendered in parallel.  (The
+ * bodies of all others may bind variables or draw other fractals, which would
+ * make concurrent rendering of sibling statements unsafe.)
+ *
+ * An evaluator that made its own pool of threads should be closed when it is
+ * no longer needed, to stop them (see close).
+ *
+ * @author newts
+ */
+public class ParallelFractalEvaluator extends FractalEvaluator
+        implements AutoCloseable {
+
+    /**
+     * The default ratio of a frame's scale to the resolution, above which the
+     * statements of a body drawn in that frame will be rendered in parallel.
+     */
+    public static final float DEFAULT_FORK_THRESHOLD = 64;
+
+    private final ForkJoinPool pool;
+    /** true if the pool was made by (and is only used by) this evaluator */
+    private final boolean ownPool;
+    private final ConcurrentHashMap<Fractal, Boolean> forkable;
+    private float forkThreshold;
+    private int forkLevels;
+
+    public ParallelFractalEvaluator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a parallel evaluator that uses the given number of threads.
+     * @param parallelism The number of threads to render with
+     */
+    public ParallelFractalEvaluator(int parallelism) {
+        this(new ForkJoinPool(parallelism), true);
+    }
+
+    /**
+     * Create a parallel evaluator that renders with the given pool, which
+     * may be shared with other evaluators (so that each need not start
+     * threads of its own).
+     * @param pool The pool of threads to render with, which is not shut down
+     * when this evaluator is closed
+     */
+    public ParallelFractalEvaluator(ForkJoinPool pool) {
+        this(pool, false);
+    }
+
+    private ParallelFractalEvaluator(ForkJoinPool pool, boolean ownPool) {
+        super();
+        this.pool = pool;
+        this.ownPool = ownPool;
+        forkable = new ConcurrentHashMap<>();
+        forkThreshold = DEFAULT_FORK_THRESHOLD;
+        // enough levels for even a 2-statement body to keep all threads busy
+        forkLevels = 32 - Integer.numberOfLeadingZeros(8 * pool.getParallelism());
+    }
+
+    /**
+     * Stop the threads of this evaluator's pool, if it made its own (a shared
+     * pool is left to its owner), once the renders in progress are done.
+     * The evaluator must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (ownPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Set the ratio of a frame's scale to the resolution above which a body
+     * drawn in that frame will be rendered in parallel.
+     * @param threshold The desired ratio
+     */
+    public void setForkThreshold(float threshold) {
+        forkThreshold = threshold;
+    }
+
+    /**
+     * Set the deepest level at which a body will be rendered in parallel.
+     * @param levels The desired number of levels
+     */
+    public void setForkLevels(int levels) {
+        forkLevels = levels;
+    }
+
+    @Override
+    protected FractalValue renderFractal(Fractal fractal, FractalState state,
+            FractalState newState) throws FractalException {
+        if (shouldFork(fractal, newState)) {
+            state.startFractal(fractal);
+            FractalValue result = renderInParallel(fractal, newState);
+            state.stopFractal();
+            return result;
+        } else {
+            return super.renderFractal(fractal, state, newState);
+        }
+    }
+
+    @Override
+    protected FractalValue renderSelf(Fractal fractal, FractalState newState,
+            FractalPoint destPt) throws FractalException {
+        if (shouldFork(fractal, newState)) {
+            return combine(destPt, renderInParallel(fractal, newState));
+        } else {
+            return super.renderSelf(fractal, newState, destPt);
+        }
+    }
+
+    private boolean shouldFork(Fractal fractal, FractalState state) {
+        return state.isResolvable()
+                && state.getLevel() <= forkLevels
+                && state.getCurrentScale() >= state.getResolution() * forkThreshold
+                && forkable.computeIfAbsent(fractal,
+                        ParallelFractalEvaluator::isForkable);
+    }
+
+    private static boolean isForkable(Fractal fractal) {
+        for (ASTStatement stmt : fractal.getBody().getSeq()) {
+            if (!(stmt instanceof ASTDrawSelf || stmt instanceof ASTDrawLine
+                    || stmt instanceof ASTStmtHome)
+                    || FormDependence.onPen(stmt)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private FractalValue renderInParallel(Fractal fractal, FractalState state)
+            throws FractalException {
+        if (ForkJoinTask.getPool() == pool) {
+            return renderBody(fractal.getBody().getSeq(), state);
+        } else {
+            BodyTask task = new BodyTask(fractal.getBody().getSeq(), state);
+            FractalValue result = pool.invoke(task);
+            if (task.failure != null) {
+                throw task.failure;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Render the given statements w.r.t. the given state, forking a task for
+     * each DRAW SELF.  Must be called from within this evaluator's pool.
+     */
+    private FractalValue renderBody(List<ASTStatement> body, FractalState state)
+            throws FractalException {
+        // Schedule the DRAW SELF statements, predicting where each will start
+        ArrayList<Object> plan = new ArrayList<>(body.size());
+        Point2D pen = state.getScreenPoint();
+        for (ASTStatement stmt : body) {
+            FractalPoint here;
+            if (stmt instanceof ASTDrawSelf self) {
+                PieceTask piece = new PieceTask(self, state.fork(pen), pen);
+                piece.fork();
+                plan.add(piece);
+                here = self.getDestExp().visit(this, state).pointValue();
+            } else {
+                plan.add(stmt);
+                if (stmt instanceof ASTDrawLine line) {
+                    here = line.getDestExp().visit(this, state).pointValue();
+                } else {
+                    here = FractalPoint.ORIGIN;
+                }
+            }
+            pen = state.toScreen(here);
+        }
+
+        // Now add them to the path in order, checking each prediction
+        FractalPoint result = FractalPoint.ORIGIN;
+        for (int i = 0; i < plan.size(); i++) {
+            Object step = plan.get(i);
+            FractalValue val;
+            if (step instanceof PieceTask piece) {
+                piece.join();
+                if (piece.failure != null) {
+                    cancelFrom(plan, i + 1);
+                    throw piece.failure;
+                }
+                // (HERE is found from the pen, so the fork, which started at
+                // the predicted pen, found the same HERE as this state would)
+                if (piece.start.equals(state.getScreenPoint())) {
+                    state.append(piece.fork);
+                    val = piece.getRawResult();
+                } else {
+                    // mispredicted the start of this statement, so redo it
+                    val = piece.stmt.visit(this, state);
+                }
+            } else {
+                val = ((ASTStatement) step).visit(this, state);
+            }
+            result = combine(result, val);
+        }
+        return result;
+    }
+
+    private void cancelFrom(List<Object> plan, int start) {
+        for (int i = start; i < plan.size(); i++) {
+            if (plan.get(i) instanceof PieceTask piece) {
+                piece.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * The task of rendering a body from outside of this evaluator's pool.
+     */
+    private class BodyTask extends RecursiveTask<FractalValue> {
+        private static final long serialVersionUID = 1L;
+
+        final List<ASTStatement> body;
+        final FractalState state;
+        FractalException failure;
+
+        BodyTask(List<ASTStatement> body, FractalState state) {
+            this.body = body;
+            this.state = state;
+        }
+
+        @Override
+        protected FractalValue compute() {
+            try {
+                return renderBody(body, state);
+            } catch (FractalException fe) {
+                failure = fe;
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The task of rendering one DRAW SELF statement on a fork of the state.
+     */
+    private class PieceTask extends RecursiveTask<FractalValue> {
+        private static final long serialVersionUID = 1L;
+
+        final ASTDrawSelf stmt;
+        final FractalState fork;
+        /** The predicted current point (in screen coordinates) */
+        final Point2D start;
+        FractalException failure;
+
+        PieceTask(ASTDrawSelf stmt, FractalState fork, Point2D start) {
+            this.stmt = stmt;
+            this.fork = fork;
+            this.start = start;
+        }
+
+        @Override
+        protected FractalValue compute() {
+            try {
+                return stmt.visit(ParallelFractalEvaluator.this, fork);
+            } catch (FractalException fe) {
+                failure = fe;
+                return null;
+            }
+        }
+    }
+}
@@ -12,24 +12,46 @@ import java.awt.geom.Point2D;
 /**
  * A utility class to succinctly represent a path in a way that if two instances
  * are equal, then it is highly likely that the paths were the same.
+ * As a SegmentSink, it hashes the path it receives without keeping it.
+ * 
+ * The segments are folded into the hash one at a time, in the order in which
+ * they are drawn, and the fold rounds at each segment (the differences hashed
+ * are not integers in general), so the hash of a path cannot be computed from
+ * the hashes of its pieces.  A path drawn in pieces (see FractalState.fork)
+ * is hashed by passing the pieces' segments to one PathHash, in order (as
+ * FractalState.append does).  Only the number of segments hashed adds up.
  * 
  * @author newts
  */
-public class PathHash {
+public class PathHash implements SegmentSink {
     
     private final static int MODULO = 1000000007;
     final int MULTIPLIER = 10; // only previous value multiplied, creating asymmetry
     
     private double absDistance;
     private double relDistance;
-    Point2D hashPt;
+    /** the coordinates of the point representing the hash */
+    private double hashX;
+    private double hashY;
     int count;
+    /** the number of segments hashed (count is only kept modulo MODULO) */
+    private long segments;
     
     public PathHash() {
+        clear();
+    }
+
+    /**
+     * Reset this hash to that of the empty path.
+     */
+    @Override
+    public final void clear() {
         absDistance = 0;
         relDistance = 0;
-        hashPt = new Point2D.Double(0, 0);
+        hashX = 0;
+        hashY = 0;
         count = 0;
+        segments = 0;
     }
     
     private float modAdd(float v1, float v2) {
@@ -47,19 +69,15 @@ public class PathHash {
         return (v1 * MULTIPLIER + v2) % MODULO;
     }
     
-    private void updateHashPt(double x, double y) {
-       double hx = combine(hashPt.getX(), x);
-       double hy = combine(hashPt.getY(), y);
-       hashPt = new Point2D.Double(hx, hy);
-    }
     
     /**
      *
      * @return The point representing the hash of the path.  (This is a value
-     * used internally to determine the hash value).
+     * used internally to determine the hash value).  A new point is made on
+     * each call; the hash itself is kept in primitive fields.
      */
     public Point2D getHashPt() {
-        return hashPt;
+        return new Point2D.Double(hashX, hashY);
     }
     
     /**
@@ -68,19 +86,54 @@ public class PathHash {
      * the segments previously added.
      */
     public long getHash() {
-        long result = (long) (hashPt.getX() * MODULO + hashPt.getY());
+        long result = (long) (hashX * MODULO + hashY);
         return result;
     }
     
+    /**
+     *
+     * @return The number of segments hashed
+     */
+    public long getSegments() {
+        return segments;
+    }
+
     /**
      * Add a segment to the path being hashed.
      * @param p The start point of the segment being added.
      * @param q The destination point of the segment being added.
      */
     public void addSegment(Point2D p, Point2D q) {
-        double dx = q.getX() - p.getX();
-        double dy = q.getY() - p.getY();
+        addSegment(p.getX(), p.getY(), q.getX(), q.getY());
+    }
+
+    /**
+     * Add the segment from (x0, y0) to (x1, y1) to the path being hashed.
+     * Unlike addSegment(Point2D, Point2D), this needs no points to be made,
+     * and it allocates nothing.
+     * @param x0 The x-coordinate of the start of the segment
+     * @param y0 The y-coordinate of the start of the segment
+     * @param x1 The x-coordinate of the end of the segment
+     * @param y1 The y-coordinate of the end of the segment
+     */
+    public void addSegment(double x0, double y0, double x1, double y1) {
         count = (count + 1) % MODULO;
-        updateHashPt(dx, dy);
+        updateHashPt(x1 - x0, y1 - y0);
+    }
+
+    private void updateHashPt(double x, double y) {
+        hashX = combine(hashX, x);
+        hashY = combine(hashY, y);
+        segments++;
+    }
+
+    @Override
+    public void moveTo(float x, float y) {
+        // moves do not contribute to the hash
+    }
+
+    @Override
+    public void lineTo(float x0, float y0, float x1, float y1) {
+        addSegment(x0, y0, x1, y1);
     }
 }
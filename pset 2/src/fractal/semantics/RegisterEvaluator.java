@@ -0,0 +1,355 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTDefFractal;
+import fractal.syntax.ASTDrawFractal;
+import fractal.syntax.ASTDrawLine;
+import fractal.syntax.ASTDrawSelf;
+import fractal.syntax.ASTExp;
+import fractal.syntax.ASTExpAdd;
+import fractal.syntax.ASTExpDiv;
+import fractal.syntax.ASTExpHere;
+import fractal.syntax.ASTExpLit;
+import fractal.syntax.ASTExpMod;
+import fractal.syntax.ASTExpMul;
+import fractal.syntax.ASTExpNegate;
+import fractal.syntax.ASTExpPtCCRot;
+import fractal.syntax.ASTExpPtVar;
+import fractal.syntax.ASTExpSub;
+import fractal.syntax.ASTExpVar;
+import fractal.syntax.ASTFracVar;
+import fractal.syntax.ASTProgram;
+import fractal.syntax.ASTStmtClear;
+import fractal.syntax.ASTStmtHome;
+import fractal.syntax.ASTStmtLet;
+import fractal.syntax.ASTStmtSequence;
+import fractal.sys.FractalException;
+import fractal.sys.FractalTypeException;
+import fractal.values.FractalArithmetic;
+import fractal.values.FractalPoint;
+import fractal.values.FractalTypes;
+import fractal.values.FractalValue;
+
+/**
+ * A visitor that evaluates expressions into primitive registers, rather than
+ * into (freshly allocated) FractalValue instances.  Visiting an expression
+ * returns the type of its value and leaves the value itself in the registers
+ * for that type: xy for a point, i for an integer and r for a real.
+ *
+ * The arithmetic is carried out by the kernels in FractalArithmetic that the
+ * FractalValue classes use, so the values computed are identical to those of
+ * the evaluator given as the fallback.  Any form that this visitor does not evaluate itself (statements,
+ * HERE, @, and any operation that would fail) is handed to the fallback, and
+ * its result loaded into the registers.  In particular, errors are therefore
+ * reported exactly as the fallback would report them.
+ *
+ * An instance is not thread-safe; each thread needs its own registers.
+ *
+ * @author newts
+ */
+public class RegisterEvaluator implements Visitor<FractalState, FractalTypes> {
+
+    private static final int ADD = 0;
+    private static final int SUB = 1;
+    private static final int MUL = 2;
+    private static final int DIV = 3;
+    private static final int MOD = 4;
+
+    private final AbstractFractalEvaluator fallback;
+
+    /** the coordinates of a point */
+    private final float[] xy = new float[2];
+    private int i;
+    private double r;
+
+    /**
+     * Create a register evaluator that agrees with the given evaluator.
+     * @param fallback The evaluator used for forms that are not evaluated
+     * into registers.
+     */
+    public RegisterEvaluator(AbstractFractalEvaluator fallback) {
+        super();
+        this.fallback = fallback;
+    }
+
+    /**
+     *
+     * @return The x-coordinate of the last point evaluated
+     */
+    public float getX() {
+        return xy[0];
+    }
+
+    /**
+     *
+     * @return The y-coordinate of the last point evaluated
+     */
+    public float getY() {
+        return xy[1];
+    }
+
+    /**
+     * Evaluate the given expression, which is expected to denote a point,
+     * leaving its coordinates in the x and y registers.
+     * @param exp The expression to be evaluated
+     * @param state The state w.r.t. which it should be evaluated
+     * @throws FractalException if the expression cannot be evaluated, or if
+     * its value is not a point.
+     */
+    public void evalPoint(ASTExp exp, FractalState state) throws FractalException {
+        FractalTypes type = exp.visit(this, state);
+        if (type != FractalTypes.POINT) {
+            throw new FractalTypeException(FractalTypes.POINT, type);
+        }
+    }
+
+    private FractalTypes point(float px, float py) {
+        xy[0] = px;
+        xy[1] = py;
+        return FractalTypes.POINT;
+    }
+
+    private FractalTypes integer(int n) {
+        i = n;
+        r = n;
+        return FractalTypes.INTEGER;
+    }
+
+    private FractalTypes real(double d) {
+        r = d;
+        return FractalTypes.REAL;
+    }
+
+    /**
+     * Load the given value into the registers.
+     * @return The type of the value
+     */
+    private FractalTypes load(FractalValue val) throws FractalException {
+        if (val.isPoint()) {
+            FractalPoint pt = val.pointValue();
+            return point(pt.getX(), pt.getY());
+        } else if (val.isInt()) {
+            return integer(val.intValue());
+        } else if (val.isReal()) {
+            return real(val.realValue());
+        } else {
+            return val.getType();
+        }
+    }
+
+    private FractalTypes delegate(ASTExp form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    /**
+     * Evaluate a binary operation, leaving its result in the registers.  Type
+     * errors are left to the fallback to report.
+     */
+    private FractalTypes binary(int op, ASTExp form, ASTExp e1, ASTExp e2,
+            FractalState state) throws FractalException {
+        FractalTypes t1 = e1.visit(this, state);
+        float x1 = xy[0];
+        float y1 = xy[1];
+        int i1 = i;
+        double r1 = r;
+        FractalTypes t2 = e2.visit(this, state);
+        float x2 = xy[0];
+        float y2 = xy[1];
+
+        if (t1 == FractalTypes.POINT && t2 == FractalTypes.POINT) {
+            switch (op) {
+                case ADD:
+                    FractalArithmetic.add(x1, y1, x2, y2, xy);
+                    break;
+                case SUB:
+                    FractalArithmetic.sub(x1, y1, x2, y2, xy);
+                    break;
+                case MUL:
+                    FractalArithmetic.mul(x1, y1, x2, y2, xy);
+                    break;
+                case DIV:
+                    FractalArithmetic.div(x1, y1, x2, y2, xy);
+                    break;
+                default:
+                    FractalArithmetic.mod(x1, y1, x2, y2, xy);
+                    break;
+            }
+            return FractalTypes.POINT;
+        } else if (t1 == FractalTypes.POINT && isNumber(t2)) {
+            switch (op) {
+                case MUL:
+                    FractalArithmetic.scale(x1, y1, r, xy);
+                    return FractalTypes.POINT;
+                case DIV:
+                    FractalArithmetic.divide(x1, y1, r, xy);
+                    return FractalTypes.POINT;
+                case MOD:
+                    if (t2 == FractalTypes.INTEGER) {
+                        FractalArithmetic.mod(x1, y1, i, xy);
+                        return FractalTypes.POINT;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } else if (t1 == FractalTypes.INTEGER && t2 == FractalTypes.INTEGER) {
+            switch (op) {
+                case ADD:
+                    return integer(FractalArithmetic.add(i1, i));
+                case SUB:
+                    return integer(FractalArithmetic.sub(i1, i));
+                case MUL:
+                    return integer(FractalArithmetic.mul(i1, i));
+                case DIV:
+                    return real(FractalArithmetic.div(r1, r));
+                default:
+                    return integer(FractalArithmetic.mod(i1, i));
+            }
+        } else if (isNumber(t1) && isNumber(t2)) {
+            switch (op) {
+                case ADD:
+                    return real(FractalArithmetic.add(r1, r));
+                case SUB:
+                    return real(FractalArithmetic.sub(r1, r));
+                case MUL:
+                    return real(t1 == FractalTypes.REAL
+                            ? FractalArithmetic.realMul(r1, r)
+                            : FractalArithmetic.mul(r1, r));
+                case DIV:
+                    return real(FractalArithmetic.div(r1, r));
+                default:
+                    return real(FractalArithmetic.mod(r1, r));
+            }
+        }
+        return delegate(form, state);
+    }
+
+    private static boolean isNumber(FractalTypes type) {
+        return type == FractalTypes.INTEGER || type == FractalTypes.REAL;
+    }
+
+    @Override
+    public FractalState mkDefaultState() {
+        return fallback.mkDefaultState();
+    }
+
+    @Override
+    public FractalTypes visitFractalProgram(ASTProgram program, FractalState state) throws FractalException {
+        return load(program.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTStmtSequence(ASTStmtSequence seq, FractalState state) throws FractalException {
+        return load(seq.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTFracVar(ASTFracVar form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTDefFractal(ASTDefFractal form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTDrawSelf(ASTDrawSelf form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTStmtClear(ASTStmtClear form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTStmtHome(ASTStmtHome form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTStmtLet(ASTStmtLet form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTExpHere(ASTExpHere form, FractalState state) throws FractalException {
+        return delegate(form, state);
+    }
+
+    @Override
+    public FractalTypes visitASTExpAdd(ASTExpAdd form, FractalState state) throws FractalException {
+        return binary(ADD, form, form.getFirst(), form.getSecond(), state);
+    }
+
+    @Override
+    public FractalTypes visitASTExpSub(ASTExpSub form, FractalState state) throws FractalException {
+        return binary(SUB, form, form.getFirst(), form.getSecond(), state);
+    }
+
+    @Override
+    public FractalTypes visitASTExpMul(ASTExpMul form, FractalState state) throws FractalException {
+        return binary(MUL, form, form.getFirst(), form.getSecond(), state);
+    }
+
+    @Override
+    public FractalTypes visitASTExpDiv(ASTExpDiv form, FractalState state) throws FractalException {
+        return binary(DIV, form, form.getFirst(), form.getSecond(), state);
+    }
+
+    @Override
+    public FractalTypes visitASTExpMod(ASTExpMod form, FractalState state) throws FractalException {
+        return binary(MOD, form, form.getFirst(), form.getSecond(), state);
+    }
+
+    @Override
+    public FractalTypes visitASTExpLit(ASTExpLit form, FractalState state) throws FractalException {
+        return load(form.getValue());
+    }
+
+    @Override
+    public FractalTypes visitASTExpPtVar(ASTExpPtVar form, FractalState state) throws FractalException {
+        return load(state.lookup(form.getSlot()));
+    }
+
+    @Override
+    public FractalTypes visitASTExpVar(ASTExpVar form, FractalState state) throws FractalException {
+        return load(state.lookup(form.getSlot()));
+    }
+
+    @Override
+    public FractalTypes visitASTDrawLine(ASTDrawLine form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTDrawFractal(ASTDrawFractal form, FractalState state) throws FractalException {
+        return load(form.visit(fallback, state));
+    }
+
+    @Override
+    public FractalTypes visitASTExpPtCCRot(ASTExpPtCCRot form, FractalState state) throws FractalException {
+        if (isNumber(form.getAngleExp().visit(this, state))) {
+            FractalArithmetic.rotation(r, xy);
+            return FractalTypes.POINT;
+        } else {
+            return delegate(form, state);
+        }
+    }
+
+    @Override
+    public FractalTypes visitASTExpNegate(ASTExpNegate form, FractalState state) throws FractalException {
+        FractalTypes type = form.getExp().visit(this, state);
+        if (type == FractalTypes.POINT) {
+            FractalArithmetic.negate(xy[0], xy[1], xy);
+            return FractalTypes.POINT;
+        } else if (type == FractalTypes.INTEGER) {
+            return integer(FractalArithmetic.negate(i));
+        } else if (type == FractalTypes.REAL) {
+            return real(FractalArithmetic.negate(r));
+        } else {
+            return delegate(form, state);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package fractal.semantics;
+
+import java.beans.ConstructorProperties;
+import java.util.Arrays;
+
+/**
+ * The statistics of one top-level DRAW of a fractal (or the totals of several
+ * of them), as recorded by FractalRenderStats.
+ *
+ * @author newts
+ */
+public class RenderRecord {
+
+    private final String fractal;
+    private final long derivedStates;
+    private final long selfExpanded;
+    private final long selfLines;
+    private final long culled;
+    private final int maxLevel;
+    private final int maxDepth;
+    private final long segments;
+    private final long wallNanos;
+    private final long[] levelCpuNanos;
+
+    @ConstructorProperties({"fractal", "derivedStates", "selfExpanded",
+        "selfLines", "culled", "maxLevel", "maxDepth", "segments", "wallNanos",
+        "levelCpuNanos"})
+    public RenderRecord(String fractal, long derivedStates, long selfExpanded,
+            long selfLines, long culled, int maxLevel, int maxDepth,
+            long segments, long wallNanos, long[] levelCpuNanos) {
+        this.fractal = fractal;
+        this.derivedStates = derivedStates;
+        this.selfExpanded = selfExpanded;
+        this.selfLines = selfLines;
+        this.culled = culled;
+        this.maxLevel = maxLevel;
+        this.maxDepth = maxDepth;
+        this.segments = segments;
+        this.wallNanos = wallNanos;
+        this.levelCpuNanos = levelCpuNanos.clone();
+    }
+
+    /**
+     * @param other Another record
+     * @return The totals of this record and the other
+     */
+    RenderRecord plus(RenderRecord other) {
+        long[] levels = Arrays.copyOf(levelCpuNanos,
+                Math.max(levelCpuNanos.length, other.levelCpuNanos.length));
+        for (int i = 0; i < other.levelCpuNanos.length; i++) {
+            levels[i] += other.levelCpuNanos[i];
+        }
+        return new RenderRecord(fractal, derivedStates + other.derivedStates,
+                selfExpanded + other.selfExpanded, selfLines + other.selfLines,
+                culled + other.culled, Math.max(maxLevel, other.maxLevel),
+                Math.max(maxDepth, other.maxDepth), segments + other.segments,
+                wallNanos + other.wallNanos, levels);
+    }
+
+    /**
+     *
+     * @return The name of the fractal drawn
+     */
+    public String getFractal() {
+        return fractal;
+    }
+
+    /**
+     *
+     * @return The number of states derived for the frames of fractal bodies
+     */
+    public long getDerivedStates() {
+        return derivedStates;
+    }
+
+    /**
+     *
+     * @return The number of DRAW SELF statements that drew the body again
+     */
+    public long getSelfExpanded() {
+        return selfExpanded;
+    }
+
+    /**
+     *
+     * @return The number of DRAW SELF statements that bottomed out as lines
+     */
+    public long getSelfLines() {
+        return selfLines;
+    }
+
+    /**
+     *
+     * @return The number of fractals skipped because they lay outside the
+     * viewport
+     */
+    public long getCulled() {
+        return culled;
+    }
+
+    /**
+     *
+     * @return The deepest level at which a fractal body was drawn
+     */
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     *
+     * @return The max. depth of the state the DRAW was evaluated in
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     *
+     * @return The number of segments drawn
+     */
+    public long getSegments() {
+        return segments;
+    }
+
+    /**
+     *
+     * @return The time taken by the DRAW, in nanoseconds
+     */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     *
+     * @return The CPU time spent drawing the bodies at each level (element i
+     * for level i), in nanoseconds, summed over the threads that drew them
+     */
+    public long[] getLevelCpuNanos() {
+        return levelCpuNanos.clone();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d segments in %.3f ms, %d derived states, "
+                + "%d/%d DRAW SELF expanded/lines, %d culled, level %d of %s",
+                fractal, segments, wallNanos / 1e6, derivedStates, selfExpanded,
+                selfLines, culled, maxLevel, maxDepth == FractalState.UNBOUNDED_DEPTH
+                ? "unbounded" : String.valueOf(maxDepth));
+    }
+}
@@ -0,0 +1,317 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTProgram;
+import fractal.syntax.ASTStatement;
+import fractal.syntax.ASTStmtClear;
+import fractal.syntax.ASTStmtSequence;
+import fractal.sys.FractalCancelledException;
+import fractal.sys.FractalException;
+import fractal.values.Fractal;
+import fractal.values.FractalPoint;
+import fractal.values.FractalValue;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A FractalEvaluator that retains what the top level of its programs draw,
+ * so that it can all be drawn again (see rerender) when the resolution or the
+ * viewport of the state changes, without running the programs again.
+ *
+ * A DRAW of a fractal with a FractalBound is kept as an ExpansionTree, so
+ * that drawing it again only expands the parts that have become resolvable
+ * (or visible), and collapses those that no longer are.  Everything else drawn
+ * at the top level (lines, and the drawings of other fractals) is kept as the
+ * segments that were drawn, and drawn again unchanged.  A CLEAR discards
+ * everything retained before it.
+ *
+ * Segments can only be kept when the state keeps its path (see
+ * FractalState.getSegments).
+ *
+ * In progressive mode (see setProgressListener), the trees of a program are
+ * first drawn only to the first level, and then drawn again, one level deeper
+ * each time, until they reach the resolution.  Each drawing replaces the last
+ * (the state is cleared, so its sink is too) and is reported to the listener,
+ * so a coarse picture appears almost at once, and is refined as it goes.
+ * Each level only expands the nodes left by the previous one.  Other drawing
+ * is done in full the first time.
+ *
+ * @author newts
+ */
+public class RetainedFractalEvaluator extends FractalEvaluator {
+
+    /**
+     * A receiver of the successive drawings made in progressive mode.
+     */
+    public interface ProgressListener {
+
+        /**
+         * The program's fractals have been drawn to the given level, which
+         * the state's path (and sink) now holds.
+         * @param level The level drawn to
+         * @param complete true if this is the last drawing of the program
+         * @param state The state drawn on
+         */
+        void levelDrawn(int level, boolean complete, FractalState state);
+    }
+
+    /**
+     * Something drawn at the top level of a program, which can be drawn again.
+     */
+    private interface Piece {
+
+        /**
+         * @param maxLevel The level below which no fractal is to be expanded
+         * @return The result of drawing it (null if it is not a DRAW)
+         */
+        FractalValue redraw(FractalState state, int maxLevel)
+                throws FractalException;
+    }
+
+    /**
+     * Segments drawn by a statement, with the point they were drawn from.
+     */
+    private static class Recording implements Piece {
+        final float startX;
+        final float startY;
+        final SegmentStore segments;
+
+        Recording(Point2D start, SegmentStore path, int from) {
+            startX = (float) start.getX();
+            startY = (float) start.getY();
+            segments = new SegmentStore();
+            segments.moveTo(startX, startY);
+            for (int i = from; i < path.size(); i++) {
+                if (path.isDrawn(i)) {
+                    segments.lineTo(path.getX(i), path.getY(i));
+                } else {
+                    segments.moveTo(path.getX(i), path.getY(i));
+                }
+            }
+        }
+
+        @Override
+        public FractalValue redraw(FractalState state, int maxLevel) {
+            for (int i = 0; i < segments.size(); i++) {
+                if (segments.isDrawn(i)) {
+                    state.lineToScreen(segments.getX(i), segments.getY(i));
+                } else {
+                    state.moveToScreen(segments.getX(i), segments.getY(i));
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A DRAW that has been retained as a tree.
+     */
+    private static class TreePiece implements Piece {
+        final ExpansionTree tree;
+
+        TreePiece(ExpansionTree tree) {
+            this.tree = tree;
+        }
+
+        @Override
+        public FractalValue redraw(FractalState state, int maxLevel)
+                throws FractalException {
+            return tree.render(state, maxLevel);
+        }
+    }
+
+    private final ArrayList<Piece> pieces;
+    /** the statements of the program being evaluated */
+    private ASTStmtSequence program;
+    /** true if a statement drew something that could not be kept */
+    private boolean incomplete;
+    /**
+     * The settings of the last rerender, or null if something has been drawn
+     * since (so the state's path is no longer just what rerender drew).
+     */
+    private Object[] rendered;
+    private ProgressListener progress;
+    /** the level below which the trees being drawn are not expanded */
+    private int maxLevel;
+
+    public RetainedFractalEvaluator() {
+        super();
+        pieces = new ArrayList<>();
+        incomplete = false;
+        rendered = null;
+        progress = null;
+        maxLevel = FractalState.UNBOUNDED_DEPTH;
+    }
+
+    /**
+     * Draw programs progressively, reporting each level to the given listener.
+     * This is only possible when the state keeps its path; otherwise programs
+     * are drawn in full at once, as usual (and reported once).
+     * @param listener The listener, or null to draw programs in full at once
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.progress = listener;
+    }
+
+    @Override
+    public FractalValue visitFractalProgram(ASTProgram program, FractalState state) throws FractalException {
+        this.program = program.getStatements();
+        try {
+            return super.visitFractalProgram(program, state);
+        } finally {
+            this.program = null;
+        }
+    }
+
+    @Override
+    public FractalValue visitASTStmtSequence(ASTStmtSequence seq, FractalState state) throws FractalException {
+        if (seq != program) {
+            return super.visitASTStmtSequence(seq, state);
+        }
+        List<ASTStatement> stmts = seq.getSeq();
+        FractalValue[] values = new FractalValue[stmts.size()];
+        int[] drawn = new int[stmts.size()];
+        int first = pieces.size();
+        boolean progressive = progress != null && state.getSegments() != null;
+        maxLevel = progressive ? state.getLevel() + 1 : FractalState.UNBOUNDED_DEPTH;
+        rendered = null;
+        try {
+            for (int i = 0; i < stmts.size(); i++) {
+                ASTStatement s = stmts.get(i);
+                if (s instanceof ASTStmtClear) {
+                    pieces.clear();
+                    incomplete = false;
+                    first = 0;
+                    // the earlier statements' pieces are gone
+                    Arrays.fill(drawn, 0, i, -1);
+                }
+                SegmentStore path = state.getSegments();
+                int before = path == null ? 0 : path.size();
+                Point2D start = state.getScreenPoint();
+                int kept = pieces.size();
+                try {
+                    values[i] = s.visit(this, state);
+                } finally {
+                    // (keep what a failed or cancelled statement drew, too)
+                    drawn[i] = pieces.size() > kept ? kept : -1;
+                    if (drawn[i] < 0 && !(s instanceof ASTStmtClear)) {
+                        if (path == null) {
+                            // the statement may have drawn, but it cannot be known
+                            incomplete = true;
+                        } else if (path.size() > before) {
+                            pieces.add(new Recording(start, path, before));
+                        }
+                    }
+                }
+            }
+            if (progress != null) {
+                refine(state, first, values, drawn);
+            }
+        } finally {
+            maxLevel = FractalState.UNBOUNDED_DEPTH;
+        }
+        FractalPoint result = FractalPoint.ORIGIN;
+        for (FractalValue v : values) {
+            result = combine(result, v);
+        }
+        return result;
+    }
+
+    /**
+     * Draw everything again, one level deeper each time, until the trees
+     * drawn by the current program (from piece first on) are no longer
+     * truncated, reporting each drawing to the progress listener.
+     * @param values The values of the program's statements, of which those
+     * that drew trees (the ones with a piece in drawn) are updated
+     */
+    private void refine(FractalState state, int first, FractalValue[] values,
+            int[] drawn) throws FractalException {
+        while (maxLevel != FractalState.UNBOUNDED_DEPTH && isTruncated(first)) {
+            progress.levelDrawn(maxLevel, false, state);
+            maxLevel++;
+            state.clear();
+            FractalValue[] redrawn = new FractalValue[pieces.size()];
+            for (int i = 0; i < pieces.size(); i++) {
+                redrawn[i] = pieces.get(i).redraw(state, i < first
+                        ? FractalState.UNBOUNDED_DEPTH : maxLevel);
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (drawn[i] >= first && redrawn[drawn[i]] != null) {
+                    values[i] = redrawn[drawn[i]];
+                }
+            }
+        }
+        progress.levelDrawn(maxLevel, true, state);
+    }
+
+    /**
+     * @return true if any of the trees among the pieces from first on was
+     * truncated when it was last drawn
+     */
+    private boolean isTruncated(int first) {
+        for (int i = first; i < pieces.size(); i++) {
+            if (pieces.get(i) instanceof TreePiece tp && tp.tree.isTruncated()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected FractalValue drawFractal(Fractal fractal, FractalPoint srcPt,
+            FractalPoint destPt, FractalState state) throws FractalException {
+        if (program != null && state.getLevel() == 0) {
+            ExpansionTree tree = ExpansionTree.of(fractal, this, state, srcPt,
+                    destPt);
+            if (tree != null) {
+                pieces.add(new TreePiece(tree));
+                return tree.render(state, maxLevel);
+            }
+        }
+        return super.drawFractal(fractal, srcPt, destPt, state);
+    }
+
+    /**
+     * Clear the given state's path, and draw everything retained on it again,
+     * at the state's current resolution and viewport.  Nothing is done if
+     * nothing has been drawn since the last time, with the same settings.
+     * @param state The state on which the programs were evaluated
+     * @throws IllegalStateException if something was drawn that could not be
+     * retained, because the state does not keep its path
+     * @throws FractalCancelledException if this evaluator's cancellation token
+     * is cancelled before it is done (it can be called again to finish)
+     * @throws FractalException if a tree cannot be drawn again, because HERE
+     * cannot be located in one of its frames
+     */
+    public void rerender(FractalState state) throws FractalException {
+        if (incomplete) {
+            throw new IllegalStateException(
+                    "The path is not kept, so it cannot be drawn again");
+        }
+        Object[] settings = {state, state.getResolution(), state.getMaxDepth(),
+            state.getViewport()};
+        if (Arrays.deepEquals(settings, rendered)) {
+            return;
+        }
+        state.clear();
+        for (Piece piece : pieces) {
+            piece.redraw(state, FractalState.UNBOUNDED_DEPTH);
+        }
+        rendered = settings;
+    }
+
+    /**
+     *
+     * @return The total number of nodes in the expansion trees retained
+     */
+    public long getRetainedNodes() {
+        long n = 0;
+        for (Piece piece : pieces) {
+            if (piece instanceof TreePiece tp) {
+                n += tp.tree.size();
+            }
+        }
+        return n;
+    }
+}
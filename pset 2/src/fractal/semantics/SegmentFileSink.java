@@ -0,0 +1,141 @@
+package fractal.semantics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A sink that writes the path it receives to a file, so that it can be read
+ * back later (see replay) without ever being held in memory.  The file is a
+ * sequence of records, each of which is an opcode byte (MOVE, LINE or CLEAR)
+ * followed, for a MOVE or a LINE, by the two float coordinates of the point
+ * moved or drawn to.  As in a SegmentStore, a move to the point that the path
+ * is already at is not recorded.
+ *
+ * Since the methods of a sink cannot throw checked exceptions, I/O errors are
+ * reported as UncheckedIOExceptions.
+ *
+ * @author newts
+ */
+public class SegmentFileSink implements SegmentSink, Closeable {
+
+    public static final byte MOVE = 0;
+    public static final byte LINE = 1;
+    public static final byte CLEAR = 2;
+
+    private final Path file;
+    private final DataOutputStream out;
+    private boolean started;
+    private float x;
+    private float y;
+
+    /**
+     * Create a sink that writes to the given file, replacing its contents.
+     * @param file The file to be written
+     * @throws IOException if the file cannot be opened
+     */
+    public SegmentFileSink(Path file) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file), 1 << 16));
+        this.started = false;
+    }
+
+    /**
+     *
+     * @return The file being written
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    private void write(byte op, float px, float py) {
+        try {
+            out.writeByte(op);
+            out.writeFloat(px);
+            out.writeFloat(py);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to write to " + file, ioe);
+        }
+        started = true;
+        x = px;
+        y = py;
+    }
+
+    @Override
+    public void moveTo(float px, float py) {
+        if (!started || px != x || py != y) {
+            write(MOVE, px, py);
+        }
+    }
+
+    @Override
+    public void lineTo(float x0, float y0, float x1, float y1) {
+        moveTo(x0, y0);
+        write(LINE, x1, y1);
+    }
+
+    @Override
+    public void clear() {
+        try {
+            out.writeByte(CLEAR);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Unable to write to " + file, ioe);
+        }
+        started = false;
+    }
+
+    /**
+     * Write out anything still buffered, and close the file.
+     * @throws IOException if the file cannot be written or closed
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Read a file written by a SegmentFileSink, passing its contents to the
+     * given sink, as they were originally passed to the file's sink.
+     * @param file The file to be read
+     * @param sink The sink to receive the path stored in the file
+     * @throws IOException if the file cannot be read, or is malformed
+     */
+    public static void replay(Path file, SegmentSink sink) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file), 1 << 16))) {
+            float px = 0;
+            float py = 0;
+            while (true) {
+                int op = in.read();
+                if (op < 0) {
+                    return;
+                } else if (op == CLEAR) {
+                    sink.clear();
+                    continue;
+                }
+                float qx = in.readFloat();
+                float qy = in.readFloat();
+                if (op == MOVE) {
+                    sink.moveTo(qx, qy);
+                } else if (op == LINE) {
+                    sink.lineTo(px, py, qx, qy);
+                } else {
+                    throw new IOException("Unknown record type " + op
+                            + " in " + file);
+                }
+                px = qx;
+                py = qy;
+            }
+        } catch (EOFException eof) {
+            throw new IOException("Truncated record in " + file, eof);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package fractal.semantics;
+
+/**
+ * A receiver of the line segments drawn by a fractal, in screen coordinates.
+ * A FractalState passes every segment that it draws (and every move of its
+ * current point) to the sink that it was created with, so what becomes of the
+ * drawing is up to the sink: it may keep the path (SegmentStore), only hash it
+ * (PathHash), write it to a file (SegmentFileSink), draw it on an image
+ * (fractal.sys.TileRasterizer), or pass it on to several other sinks
+ * (TeeSink).
+ *
+ * @author newts
+ */
+public interface SegmentSink {
+
+    /**
+     * The current point has moved to the given point without drawing.
+     * @param x The x-coordinate of the new current point
+     * @param y The y-coordinate of the new current point
+     */
+    void moveTo(float x, float y);
+
+    /**
+     * A line has been drawn from (x0, y0), which is the current point, to
+     * (x1, y1), which becomes the current point.
+     * @param x0 The x-coordinate of the start of the line
+     * @param y0 The y-coordinate of the start of the line
+     * @param x1 The x-coordinate of the end of the line
+     * @param y1 The y-coordinate of the end of the line
+     */
+    void lineTo(float x0, float y0, float x1, float y1);
+
+    /**
+     * Everything drawn so far has been cleared.
+     */
+    void clear();
+}
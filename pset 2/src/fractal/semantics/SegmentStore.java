@@ -0,0 +1,384 @@
+package fractal.semantics;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.IllegalPathStateException;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * An append-only store of the points of a path made up of straight line
+ * segments, each of which is either moved to or drawn to from the previous
+ * one.  The points are kept in fixed size chunks of primitive arrays: two
+ * floats for the coordinates of each point, and one bit to say whether it is
+ * drawn to.  Unlike a GeneralPath, the store never copies the points it
+ * already holds as it grows, and a move to the point that the path is
+ * already at is not recorded at all (a move following a move replaces it, as
+ * in a GeneralPath).
+ *
+ * As a SegmentSink, a store accumulates the path that it receives.
+ *
+ * Subclasses may keep the coordinates elsewhere (see MappedSegmentStore) by
+ * overriding put, getX and getY.
+ *
+ * The store can be viewed as a Shape (asShape) without copying it.  Since
+ * components such as GraphingPanel will only display a GeneralPath, the store
+ * can also maintain one (getPath), which is only created when it is first
+ * asked for, and thereafter kept up to date as points are added.
+ *
+ * @author newts
+ */
+public class SegmentStore implements SegmentSink {
+
+    static final int CHUNK_BITS = 14;
+    /** The number of points held by each chunk */
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private float[][] coords;
+    private long[][] drawn;
+    private int size;
+
+    // the current point, and the bounds of all the points added so far
+    private float x;
+    private float y;
+    private float xlo;
+    private float ylo;
+    private float xhi;
+    private float yhi;
+
+    /** The equivalent GeneralPath, if one has been asked for */
+    private GeneralPath mirror;
+
+    /**
+     * Create an empty store.
+     */
+    public SegmentStore() {
+        coords = new float[1][];
+        drawn = new long[1][];
+        reset();
+    }
+
+    /**
+     * Remove all the points from this store (and from its GeneralPath).
+     */
+    public final void reset() {
+        Arrays.fill(coords, null);
+        Arrays.fill(drawn, null);
+        size = 0;
+        xlo = Float.POSITIVE_INFINITY;
+        ylo = Float.POSITIVE_INFINITY;
+        xhi = Float.NEGATIVE_INFINITY;
+        yhi = Float.NEGATIVE_INFINITY;
+        if (mirror != null) {
+            mirror.reset();
+        }
+    }
+
+    /**
+     *
+     * @return The number of points in this store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @return true if there are no points in this store
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Record the coordinates of the i-th point.  Points are put in order of
+     * their indices, but a point may be put again (replacing it) when a move
+     * is replaced by another.
+     * @param i The index of the point
+     * @param px The x-coordinate of the point
+     * @param py The y-coordinate of the point
+     */
+    protected void put(int i, float px, float py) {
+        int c = i >>> CHUNK_BITS;
+        int k = i & CHUNK_MASK;
+        if (coords[c] == null) {
+            coords[c] = new float[2 * CHUNK_SIZE];
+        }
+        coords[c][2 * k] = px;
+        coords[c][2 * k + 1] = py;
+    }
+
+    /**
+     * @param i The index of a point (0 &lt;= i &lt; size())
+     * @return The x-coordinate of the i-th point
+     */
+    public float getX(int i) {
+        return coords[i >>> CHUNK_BITS][2 * (i & CHUNK_MASK)];
+    }
+
+    /**
+     * @param i The index of a point (0 &lt;= i &lt; size())
+     * @return The y-coordinate of the i-th point
+     */
+    public float getY(int i) {
+        return coords[i >>> CHUNK_BITS][2 * (i & CHUNK_MASK) + 1];
+    }
+
+    /**
+     * @param i The index of a point (0 &lt;= i &lt; size())
+     * @return true if a line is drawn to the i-th point, false if it is
+     * moved to.
+     */
+    public boolean isDrawn(int i) {
+        int k = i & CHUNK_MASK;
+        return (drawn[i >>> CHUNK_BITS][k >>> 6] & (1L << k)) != 0;
+    }
+
+    /**
+     *
+     * @return The x-coordinate of the current point (the last one added)
+     */
+    public float getCurrentX() {
+        return x;
+    }
+
+    /**
+     *
+     * @return The y-coordinate of the current point (the last one added)
+     */
+    public float getCurrentY() {
+        return y;
+    }
+
+    /**
+     *
+     * @return The current point (the last one added), or null if the store
+     * is empty, as for GeneralPath.getCurrentPoint
+     */
+    public Point2D getCurrentPoint() {
+        return size == 0 ? null : new Point2D.Float(x, y);
+    }
+
+    /**
+     * Move to the given point, unless the path is already there.
+     * @param px The x-coordinate of the point
+     * @param py The y-coordinate of the point
+     */
+    public void moveTo(float px, float py) {
+        if (size > 0 && px == x && py == y) {
+            return;
+        }
+        if (size > 0 && !isDrawn(size - 1)) {
+            // a move that draws nothing is replaced
+            size--;
+        }
+        add(false, px, py);
+        if (mirror != null) {
+            mirror.moveTo(px, py);
+        }
+    }
+
+    /**
+     * Draw a line from the current point to the given point.
+     * @param px The x-coordinate of the point
+     * @param py The y-coordinate of the point
+     * @throws IllegalPathStateException if the store is empty (there is no
+     * current point)
+     */
+    public void lineTo(float px, float py) {
+        if (size == 0) {
+            throw new IllegalPathStateException("missing initial moveto "
+                    + "in path definition");
+        }
+        add(true, px, py);
+        if (mirror != null) {
+            mirror.lineTo(px, py);
+        }
+    }
+
+    @Override
+    public void lineTo(float x0, float y0, float x1, float y1) {
+        moveTo(x0, y0);
+        lineTo(x1, y1);
+    }
+
+    @Override
+    public void clear() {
+        reset();
+    }
+
+    private void add(boolean draw, float px, float py) {
+        if (size == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Segment store is full");
+        }
+        int c = size >>> CHUNK_BITS;
+        int k = size & CHUNK_MASK;
+        if (c == drawn.length) {
+            coords = Arrays.copyOf(coords, 2 * c);
+            drawn = Arrays.copyOf(drawn, 2 * c);
+        }
+        if (drawn[c] == null) {
+            drawn[c] = new long[CHUNK_SIZE / 64];
+        }
+        put(size, px, py);
+        if (draw) {
+            drawn[c][k >>> 6] |= 1L << k;
+        } else {
+            drawn[c][k >>> 6] &= ~(1L << k);
+        }
+        size++;
+        x = px;
+        y = py;
+        xlo = Math.min(xlo, px);
+        ylo = Math.min(ylo, py);
+        xhi = Math.max(xhi, px);
+        yhi = Math.max(yhi, py);
+    }
+
+    /**
+     *
+     * @return A GeneralPath with the same points as this store.  The same
+     * path is returned each time, and it is kept up to date as points are
+     * added to the store, so it can be handed once to a component that
+     * displays it.
+     */
+    public GeneralPath getPath() {
+        if (mirror == null) {
+            mirror = new GeneralPath(Path2D.WIND_NON_ZERO, Math.max(size, 20));
+            for (int i = 0; i < size; i++) {
+                if (isDrawn(i)) {
+                    mirror.lineTo(getX(i), getY(i));
+                } else {
+                    mirror.moveTo(getX(i), getY(i));
+                }
+            }
+        }
+        return mirror;
+    }
+
+    /**
+     *
+     * @return A view of this store as a Shape.  It is backed by the store, so
+     * it reflects any points added after it was created.
+     */
+    public Shape asShape() {
+        return new SegmentShape();
+    }
+
+    /**
+     * A Shape made up of the segments in this store.
+     */
+    private class SegmentShape implements Shape {
+
+        @Override
+        public Rectangle getBounds() {
+            return getBounds2D().getBounds();
+        }
+
+        @Override
+        public Rectangle2D getBounds2D() {
+            if (size == 0) {
+                return new Rectangle2D.Float();
+            }
+            return new Rectangle2D.Float(xlo, ylo, xhi - xlo, yhi - ylo);
+        }
+
+        @Override
+        public boolean contains(double px, double py) {
+            return Path2D.contains(getPathIterator(null), px, py);
+        }
+
+        @Override
+        public boolean contains(Point2D p) {
+            return contains(p.getX(), p.getY());
+        }
+
+        @Override
+        public boolean intersects(double px, double py, double w, double h) {
+            return Path2D.intersects(getPathIterator(null), px, py, w, h);
+        }
+
+        @Override
+        public boolean intersects(Rectangle2D r) {
+            return intersects(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        }
+
+        @Override
+        public boolean contains(double px, double py, double w, double h) {
+            return Path2D.contains(getPathIterator(null), px, py, w, h);
+        }
+
+        @Override
+        public boolean contains(Rectangle2D r) {
+            return contains(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        }
+
+        @Override
+        public PathIterator getPathIterator(AffineTransform at) {
+            return new SegmentIterator(at);
+        }
+
+        @Override
+        public PathIterator getPathIterator(AffineTransform at, double flatness) {
+            // the segments are already flat
+            return new SegmentIterator(at);
+        }
+    }
+
+    /**
+     * An iterator over the points in this store (as they were when it was
+     * created).
+     */
+    private class SegmentIterator implements PathIterator {
+        private final AffineTransform xform;
+        private final int end;
+        private int i;
+
+        SegmentIterator(AffineTransform xform) {
+            this.xform = xform;
+            this.end = size;
+            this.i = 0;
+        }
+
+        @Override
+        public int getWindingRule() {
+            return WIND_NON_ZERO;
+        }
+
+        @Override
+        public boolean isDone() {
+            return i >= end;
+        }
+
+        @Override
+        public void next() {
+            i++;
+        }
+
+        @Override
+        public int currentSegment(float[] dst) {
+            dst[0] = getX(i);
+            dst[1] = getY(i);
+            if (xform != null) {
+                xform.transform(dst, 0, dst, 0, 1);
+            }
+            return isDrawn(i) ? SEG_LINETO : SEG_MOVETO;
+        }
+
+        @Override
+        public int currentSegment(double[] dst) {
+            dst[0] = getX(i);
+            dst[1] = getY(i);
+            if (xform != null) {
+                xform.transform(dst, 0, dst, 0, 1);
+            }
+            return isDrawn(i) ? SEG_LINETO : SEG_MOVETO;
+        }
+    }
+}
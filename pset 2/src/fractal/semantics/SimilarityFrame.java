@@ -0,0 +1,391 @@
+package fractal.semantics;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+
+/**
+ * A mutable coordinate frame that is a similarity transformation (a rotation,
+ * uniform scaling and translation), which is the only kind of frame that a
+ * DRAW statement can produce.  It is represented by just four numbers: the
+ * image (a, b) of the unit X vector, and the image (tx, ty) of the origin,
+ * giving the matrix
+ * <pre>
+ *     [ a  -b  tx ]
+ *     [ b   a  ty ]
+ * </pre>
+ *
+ * The arithmetic, including the choice of formula according to which of the
+ * matrix's components are trivial, is exactly that of AffineTransform, so
+ * points are mapped to precisely the same coordinates as they would be by the
+ * equivalent AffineTransform.  Unlike an AffineTransform, a frame can be
+ * updated in place, so deriving one frame from another need not allocate.
+ *
+ * @author newts
+ */
+class SimilarityFrame {
+
+    // The classification of the matrix, as kept by AffineTransform
+    private static final int APPLY_IDENTITY = 0;
+    private static final int APPLY_TRANSLATE = 1;
+    private static final int APPLY_SCALE = 2;
+    private static final int APPLY_SHEAR = 4;
+
+    private double a;
+    private double b;
+    private double tx;
+    private double ty;
+    private int state;
+
+    /**
+     * Create a frame that is the identity transformation.
+     */
+    SimilarityFrame() {
+        a = 1;
+        b = 0;
+        tx = 0;
+        ty = 0;
+        state = APPLY_IDENTITY;
+    }
+
+    /**
+     * Create a copy of the given frame.
+     * @param frame The frame to be copied
+     */
+    SimilarityFrame(SimilarityFrame frame) {
+        setTo(frame);
+    }
+
+    /**
+     * Determine whether the given transform can be represented as a frame.
+     * @param xform The transform
+     * @return true if the transform is a similarity that preserves orientation
+     */
+    static boolean isSimilarity(AffineTransform xform) {
+        return xform.getScaleX() == xform.getScaleY()
+                && xform.getShearX() == -xform.getShearY();
+    }
+
+    /**
+     * Create the frame equivalent to the given transform, which must be a
+     * similarity (see isSimilarity).
+     * @param xform The transform
+     */
+    SimilarityFrame(AffineTransform xform) {
+        a = xform.getScaleX();
+        b = xform.getShearY();
+        tx = xform.getTranslateX();
+        ty = xform.getTranslateY();
+        state = classify(a, b, tx, ty);
+    }
+
+    /**
+     * Make this frame the same as the given one.
+     * @param frame The frame to be copied
+     */
+    final void setTo(SimilarityFrame frame) {
+        a = frame.a;
+        b = frame.b;
+        tx = frame.tx;
+        ty = frame.ty;
+        state = frame.state;
+    }
+
+    /**
+     *
+     * @return The equivalent AffineTransform
+     */
+    AffineTransform toAffineTransform() {
+        return new AffineTransform(a, b, -b, a, tx, ty);
+    }
+
+    private static int classify(double a, double b, double tx, double ty) {
+        int translate = (tx != 0 || ty != 0) ? APPLY_TRANSLATE : APPLY_IDENTITY;
+        if (b == 0) {
+            return a == 1 ? translate : APPLY_SCALE | translate;
+        } else if (a == 0) {
+            return APPLY_SHEAR | translate;
+        } else {
+            return APPLY_SHEAR | APPLY_SCALE | translate;
+        }
+    }
+
+    /**
+     * Concatenate the transform that maps (0, 0) to (sx, sy) and (1, 0) to
+     * (dx, dy) to this frame, as mapRigidlyXAxisTo and
+     * AffineTransform.concatenate would, so that this frame maps points
+     * given relative to those two to the coordinates it used to map to.
+     * @param sx The x-coordinate of the new origin
+     * @param sy The y-coordinate of the new origin
+     * @param dx The x-coordinate of the new unit X
+     * @param dy The y-coordinate of the new unit X
+     */
+    void concatenateRigidMap(double sx, double sy, double dx, double dy) {
+        concatenate(dx - sx, dy - sy, sx, sy);
+    }
+
+    /**
+     * Concatenate the similarity with matrix [p -q s] [q p t] to this frame.
+     * @param p The image of X's x-coordinate
+     * @param q The image of X's y-coordinate
+     * @param s The x-coordinate of the image of the origin
+     * @param t The y-coordinate of the image of the origin
+     */
+    void concatenate(double p, double q, double s, double t) {
+        int txstate = classify(p, q, s, t);
+        double m01 = -b;
+
+        // special cases in which one of the matrices is trivial
+        if (txstate == APPLY_IDENTITY) {
+            return;
+        } else if (state == APPLY_IDENTITY) {
+            a = p;
+            b = q;
+            tx = s;
+            ty = t;
+            state = txstate;
+            return;
+        } else if (txstate == APPLY_TRANSLATE) {
+            translate(s, t);
+            return;
+        } else if (txstate == APPLY_SCALE) {
+            scale(p);
+            return;
+        } else if (txstate == APPLY_SHEAR) {
+            switch (state) {
+                case APPLY_SHEAR | APPLY_SCALE | APPLY_TRANSLATE:
+                case APPLY_SHEAR | APPLY_SCALE:
+                    double m10 = a * q;
+                    a = m01 * q;
+                    b = m10;
+                    return;
+                case APPLY_SHEAR | APPLY_TRANSLATE:
+                case APPLY_SHEAR:
+                    a = m01 * q;
+                    b = 0;
+                    state ^= APPLY_SHEAR | APPLY_SCALE;
+                    return;
+                case APPLY_SCALE | APPLY_TRANSLATE:
+                case APPLY_SCALE:
+                    b = a * q;
+                    a = 0;
+                    state ^= APPLY_SHEAR | APPLY_SCALE;
+                    return;
+                default:
+                    a = 0;
+                    b = q;
+                    state = APPLY_TRANSLATE | APPLY_SHEAR;
+                    return;
+            }
+        }
+
+        // the general case
+        double m00;
+        double m10;
+        switch (state) {
+            case APPLY_SHEAR | APPLY_SCALE:
+            case APPLY_SHEAR | APPLY_SCALE | APPLY_TRANSLATE:
+                // (a no-op if this frame already translates)
+                state = state | txstate;
+                m00 = p * a + q * m01;
+                tx += s * a + t * m01;
+                m10 = p * b + q * a;
+                ty += s * b + t * a;
+                a = m00;
+                b = m10;
+                return;
+            case APPLY_SHEAR | APPLY_TRANSLATE:
+            case APPLY_SHEAR:
+                m00 = q * m01;
+                tx += t * m01;
+                m10 = p * b;
+                ty += s * b;
+                a = m00;
+                b = m10;
+                break;
+            case APPLY_SCALE | APPLY_TRANSLATE:
+            case APPLY_SCALE:
+                m00 = p * a;
+                tx += s * a;
+                m10 = q * a;
+                ty += t * a;
+                a = m00;
+                b = m10;
+                break;
+            default:
+                a = p;
+                b = q;
+                tx += s;
+                ty += t;
+                state = txstate | APPLY_TRANSLATE;
+                return;
+        }
+        state = classify(a, b, tx, ty);
+    }
+
+    private void translate(double s, double t) {
+        double m01 = -b;
+        switch (state) {
+            case APPLY_SHEAR | APPLY_SCALE | APPLY_TRANSLATE:
+                tx = s * a + t * m01 + tx;
+                ty = s * b + t * a + ty;
+                if (tx == 0 && ty == 0) {
+                    state = APPLY_SHEAR | APPLY_SCALE;
+                }
+                return;
+            case APPLY_SHEAR | APPLY_SCALE:
+                tx = s * a + t * m01;
+                ty = s * b + t * a;
+                break;
+            case APPLY_SHEAR | APPLY_TRANSLATE:
+                tx = t * m01 + tx;
+                ty = s * b + ty;
+                if (tx == 0 && ty == 0) {
+                    state = APPLY_SHEAR;
+                }
+                return;
+            case APPLY_SHEAR:
+                tx = t * m01;
+                ty = s * b;
+                break;
+            case APPLY_SCALE | APPLY_TRANSLATE:
+                tx = s * a + tx;
+                ty = t * a + ty;
+                if (tx == 0 && ty == 0) {
+                    state = APPLY_SCALE;
+                }
+                return;
+            case APPLY_SCALE:
+                tx = s * a;
+                ty = t * a;
+                break;
+            default:
+                // APPLY_TRANSLATE (this frame is not the identity)
+                tx = s + tx;
+                ty = t + ty;
+                if (tx == 0 && ty == 0) {
+                    state = APPLY_IDENTITY;
+                }
+                return;
+        }
+        if (tx != 0 || ty != 0) {
+            state |= APPLY_TRANSLATE;
+        }
+    }
+
+    private void scale(double p) {
+        switch (state) {
+            case APPLY_SHEAR | APPLY_SCALE | APPLY_TRANSLATE:
+            case APPLY_SHEAR | APPLY_SCALE:
+            case APPLY_SHEAR | APPLY_TRANSLATE:
+            case APPLY_SHEAR:
+                if ((state & APPLY_SCALE) != 0) {
+                    a *= p;
+                }
+                b *= p;
+                if (b == 0) {
+                    state &= APPLY_TRANSLATE;
+                    if (a != 1) {
+                        state |= APPLY_SCALE;
+                    }
+                }
+                return;
+            case APPLY_SCALE | APPLY_TRANSLATE:
+            case APPLY_SCALE:
+                a *= p;
+                if (a == 1) {
+                    state &= APPLY_TRANSLATE;
+                }
+                return;
+            default:
+                // APPLY_TRANSLATE (this frame is not the identity)
+                a = p;
+                state |= APPLY_SCALE;
+        }
+    }
+
+    /**
+     * Map the point (x, y) by this frame.
+     * @param x The x-coordinate of the point
+     * @param y The y-coordinate of the point
+     * @param dst The array in which to store the image of the point
+     */
+    void transform(double x, double y, double[] dst) {
+        switch (state) {
+            case APPLY_SHEAR | APPLY_SCALE | APPLY_TRANSLATE:
+                dst[0] = x * a + y * -b + tx;
+                dst[1] = x * b + y * a + ty;
+                return;
+            case APPLY_SHEAR | APPLY_SCALE:
+                dst[0] = x * a + y * -b;
+                dst[1] = x * b + y * a;
+                return;
+            case APPLY_SHEAR | APPLY_TRANSLATE:
+                dst[0] = y * -b + tx;
+                dst[1] = x * b + ty;
+                return;
+            case APPLY_SHEAR:
+                dst[0] = y * -b;
+                dst[1] = x * b;
+                return;
+            case APPLY_SCALE | APPLY_TRANSLATE:
+                dst[0] = x * a + tx;
+                dst[1] = y * a + ty;
+                return;
+            case APPLY_SCALE:
+                dst[0] = x * a;
+                dst[1] = y * a;
+                return;
+            case APPLY_TRANSLATE:
+                dst[0] = x + tx;
+                dst[1] = y + ty;
+                return;
+            default:
+                dst[0] = x;
+                dst[1] = y;
+        }
+    }
+
+    /**
+     * Find the point that this frame maps to (x, y).
+     * @param x The x-coordinate of the image
+     * @param y The y-coordinate of the image
+     * @param dst The array in which to store the point
+     * @throws NoninvertibleTransformException if the frame is degenerate
+     */
+    void inverseTransform(double x, double y, double[] dst)
+            throws NoninvertibleTransformException {
+        double m01 = -b;
+        if ((state & APPLY_TRANSLATE) != 0) {
+            x -= tx;
+            y -= ty;
+        }
+        switch (state & ~APPLY_TRANSLATE) {
+            case APPLY_SHEAR | APPLY_SCALE:
+                double det = a * a - m01 * b;
+                if (Math.abs(det) <= Double.MIN_VALUE) {
+                    throw new NoninvertibleTransformException("Determinant is "
+                            + det);
+                }
+                dst[0] = (x * a - y * m01) / det;
+                dst[1] = (y * a - x * b) / det;
+                return;
+            case APPLY_SHEAR:
+                if (m01 == 0 || b == 0) {
+                    throw new NoninvertibleTransformException("Determinant is 0");
+                }
+                dst[0] = y / b;
+                dst[1] = x / m01;
+                return;
+            case APPLY_SCALE:
+                if (a == 0) {
+                    throw new NoninvertibleTransformException("Determinant is 0");
+                }
+                dst[0] = x / a;
+                dst[1] = y / a;
+                return;
+            default:
+                dst[0] = x;
+                dst[1] = y;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package fractal.semantics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sink that passes everything it receives on to each of a number of other
+ * sinks, in order.
+ *
+ * @author newts
+ */
+public class TeeSink implements SegmentSink {
+
+    private final SegmentSink[] sinks;
+
+    /**
+     * Create a sink that forwards to the given sinks.
+     * @param sinks The sinks to forward to, in the order in which they should
+     * receive each segment.
+     */
+    public TeeSink(SegmentSink... sinks) {
+        this.sinks = sinks.clone();
+    }
+
+    /**
+     *
+     * @return The sinks that this one forwards to
+     */
+    public List<SegmentSink> getSinks() {
+        return Collections.unmodifiableList(Arrays.asList(sinks));
+    }
+
+    @Override
+    public void moveTo(float x, float y) {
+        for (SegmentSink sink : sinks) {
+            sink.moveTo(x, y);
+        }
+    }
+
+    @Override
+    public void lineTo(float x0, float y0, float x1, float y1) {
+        for (SegmentSink sink : sinks) {
+            sink.lineTo(x0, y0, x1, y1);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (SegmentSink sink : sinks) {
+            sink.clear();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package fractal.semantics;
+
+import fractal.syntax.ASTDrawLine;
+import fractal.syntax.ASTDrawSelf;
+import fractal.syntax.ASTStatement;
+import fractal.syntax.ASTStmtHome;
+import fractal.sys.FractalCancelledException;
+import fractal.sys.FractalException;
+import fractal.values.Fractal;
+import fractal.values.FractalPoint;
+import fractal.values.FractalValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * A FractalEvaluator that renders suitable fractals by stamping out templates
+ * instead of interpreting their bodies.  A template is the path traced out by
+ * a fractal in the unit frame (the frame in which its body is evaluated) when
+ * it is expanded to a given number of levels.  It is transformed into the
+ * frame of each DRAW that uses it, and the template for n levels is itself
+ * made by stamping out the template for n - 1 levels once for each DRAW SELF
+ * in the body.
+ *
+ * A fractal is suitable if its body consists only of DRAW SELF, DRAW LINE and
+ * HOME statements whose points are constants (they refer neither to HERE nor
+ * to any variable), all of its DRAW SELF statements span exactly the same
+ * (less than unit) distance, and it finishes at X.  Under those conditions,
+ * every branch of the fractal is expanded to the same depth, which is
+ * determined by the scale of the frame in which it is drawn.  All other
+ * fractals are rendered as usual.
+ *
+ * The other evaluators start each DRAW SELF at HERE, located on the screen,
+ * so the frames they derive differ from the template's by rounding.  Where
+ * that could change how deeply some branch is expanded (see
+ * FractalBound.depthIn), the body is rendered as usual for one level, and its
+ * DRAW SELF statements stamped out in turn, so the result of a DRAW is always
+ * that of the recursive evaluator, and the path is the same up to rounding.
+ * The points of a template are computed in double precision in the unit frame
+ * and only rounded when they are mapped to the screen, so the hash of the
+ * path will in general differ from theirs.
+ *
+ * @author newts
+ */
+public class TemplateFractalEvaluator extends FractalEvaluator {
+
+    /**
+     * The largest number of points that will be stored in a template.  Deeper
+     * levels are rendered by stamping out the largest template that fits.
+     */
+    public static final int MAX_TEMPLATE_SIZE = 1 << 18;
+
+    private static final byte SELF = 0;
+    private static final byte LINE = 1;
+    private static final byte HOME = 2;
+
+    private final WeakHashMap<Fractal, Generator> generators;
+
+    public TemplateFractalEvaluator() {
+        super();
+        generators = new WeakHashMap<>();
+    }
+
+    @Override
+    protected FractalValue renderFractal(Fractal fractal, FractalState state,
+            FractalState newState) throws FractalException {
+        Generator gen = generatorFor(fractal, state);
+        FractalValue result = gen == null ? null : gen.render(newState);
+        if (result == null) {
+            return super.renderFractal(fractal, state, newState);
+        }
+        return result;
+    }
+
+    @Override
+    protected FractalValue renderSelf(Fractal fractal, FractalState newState,
+            FractalPoint destPt) throws FractalException {
+        Generator gen = generatorFor(fractal, newState);
+        FractalValue result = gen == null ? null : gen.render(newState);
+        if (result == null) {
+            return super.renderSelf(fractal, newState, destPt);
+        }
+        return combine(destPt, result);
+    }
+
+    /**
+     * @return The generator of templates for the given fractal, or null if the
+     * fractal cannot be rendered from templates.
+     */
+    private Generator generatorFor(Fractal fractal, FractalState state) {
+        if (!generators.containsKey(fractal)) {
+            generators.put(fractal, analyse(fractal, state));
+        }
+        return generators.get(fractal);
+    }
+
+    private Generator analyse(Fractal fractal, FractalState state) {
+        List<ASTStatement> body = fractal.getBody().getSeq();
+        Generator gen = new Generator(fractal, body.size());
+        FractalPoint pen = FractalPoint.ORIGIN;
+        double shortest = 0;
+        try {
+            for (int i = 0; i < body.size(); i++) {
+                ASTStatement stmt = body.get(i);
+                if (FormDependence.onContext(stmt)) {
+                    return null;
+                } else if (stmt instanceof ASTDrawSelf self) {
+                    // as for the other evaluators, the source is always HERE
+                    FractalPoint dest = self.getDestExp().visit(this, state)
+                            .pointValue();
+                    double len = pen.distanceFrom(dest);
+                    if (gen.ratio < 0) {
+                        shortest = len;
+                    }
+                    shortest = Math.min(shortest, len);
+                    gen.ratio = Math.max(gen.ratio, len);
+                    gen.selves++;
+                    gen.add(i, SELF, pen, dest);
+                    pen = dest;
+                } else if (stmt instanceof ASTDrawLine line) {
+                    FractalPoint src = null;
+                    if (line.getSrcExp() != null) {
+                        src = line.getSrcExp().visit(this, state).pointValue();
+                    }
+                    FractalPoint dest = line.getDestExp().visit(this, state)
+                            .pointValue();
+                    gen.add(i, LINE, src, dest);
+                    pen = dest;
+                } else if (stmt instanceof ASTStmtHome) {
+                    gen.add(i, HOME, null, FractalPoint.ORIGIN);
+                    pen = FractalPoint.ORIGIN;
+                } else {
+                    return null;
+                }
+            }
+        } catch (FractalException fe) {
+            // leave it to the body to report the error when it is rendered
+            return null;
+        }
+        if (gen.ratio < 0) {
+            // no SELF references, so the body is always rendered the same way
+            gen.ratio = 0;
+        } else if (gen.ratio >= 1 || shortest != gen.ratio
+                || !pen.equals(FractalPoint.X_UNIT)) {
+            return null;
+        }
+        gen.bound = FractalBound.of(fractal.getBody(), this, state);
+        return gen.bound == null ? null : gen;
+    }
+
+    /**
+     * A list of points in a fractal's unit frame, each of which is either
+     * moved to or drawn to.
+     */
+    private static class Template {
+        final double[] coords;
+        final boolean[] drawn;
+        int size;
+
+        Template(int capacity) {
+            coords = new double[2 * capacity];
+            drawn = new boolean[capacity];
+            size = 0;
+        }
+
+        void add(boolean draw, double x, double y) {
+            coords[2 * size] = x;
+            coords[2 * size + 1] = y;
+            drawn[size] = draw;
+            size++;
+        }
+    }
+
+    /**
+     * The description of a suitable fractal's body, from which its templates
+     * (and the results of drawing it) are generated and cached.
+     */
+    private class Generator {
+        final Fractal fractal;
+        final byte[] kinds;
+        /** the source of each statement (null if it has no FROM clause) */
+        final FractalPoint[] srcs;
+        final FractalPoint[] dests;
+        /** the ratio of the scale of each SELF reference to the body's */
+        double ratio;
+        int selves;
+        /** the bound of the body, which tells how deeply it is expanded */
+        FractalBound bound;
+        /** the templates (null if too large) and sizes for each level */
+        final ArrayList<Template> templates;
+        final ArrayList<Integer> sizes;
+        final ArrayList<FractalPoint> results;
+
+        Generator(Fractal fractal, int n) {
+            this.fractal = fractal;
+            kinds = new byte[n];
+            srcs = new FractalPoint[n];
+            dests = new FractalPoint[n];
+            ratio = -1;
+            selves = 0;
+            templates = new ArrayList<>();
+            sizes = new ArrayList<>();
+            results = new ArrayList<>();
+        }
+
+        void add(int i, byte kind, FractalPoint src, FractalPoint dest) {
+            kinds[i] = kind;
+            srcs[i] = src;
+            dests[i] = dest;
+        }
+
+        /**
+         * Render the body w.r.t. the given state, if the depth to which it
+         * must be expanded is certain.
+         * @return The result of rendering the body, or null if nothing was
+         * rendered, since the body must be rendered as usual
+         */
+        FractalValue render(FractalState state) throws FractalCancelledException {
+            int n = bound.depthIn(state);
+            if (n < 0) {
+                return null;
+            }
+            stamp(n, state);
+            return result(n);
+        }
+
+        private void stamp(int n, FractalState state)
+                throws FractalCancelledException {
+            checkCancelled();
+            FractalRenderStats stats = getRenderStats();
+            Template t = template(n);
+            if (t != null) {
+                if (stats != null) {
+                    stats.stamped(state.getLevel(), n, selves);
+                }
+                for (int i = 0; i < t.size; i++) {
+                    if (t.drawn[i]) {
+                        state.lineTo(t.coords[2 * i], t.coords[2 * i + 1]);
+                    } else {
+                        state.moveTo(t.coords[2 * i], t.coords[2 * i + 1]);
+                    }
+                }
+            } else {
+                for (int i = 0; i < kinds.length; i++) {
+                    switch (kinds[i]) {
+                        case SELF:
+                            if (n == 0) {
+                                // (a body too large for even one level)
+                                if (stats != null) {
+                                    stats.selfLine(state.getLevel());
+                                }
+                                state.lineTo(dests[i]);
+                                break;
+                            }
+                            if (stats != null) {
+                                stats.selfExpanded(state.getLevel());
+                                stats.derived();
+                            }
+                            stampSelf(n - 1, state.derivePooledState(srcs[i],
+                                    dests[i]));
+                            break;
+                        case LINE:
+                            if (srcs[i] != null) {
+                                state.moveTo(srcs[i]);
+                            }
+                            state.lineTo(dests[i]);
+                            break;
+                        default:
+                            state.moveTo(FractalPoint.ORIGIN);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stamp out the template for n levels in the frame of a DRAW SELF,
+         * sampling it as an Expansion event, as drawSelf would.
+         */
+        private void stampSelf(int n, FractalState newState)
+                throws FractalCancelledException {
+            if (!FractalEvents.sampleExpansion()) {
+                stamp(n, newState);
+                return;
+            }
+            FractalEvents.Expansion event = new FractalEvents.Expansion();
+            long before = newState.getSegmentCount();
+            event.begin();
+            try {
+                stamp(n, newState);
+            } finally {
+                finishExpansion(event, fractal, newState, before);
+            }
+        }
+
+        /**
+         * @return The template for n levels, or null if it would be too large
+         */
+        private Template template(int n) {
+            while (templates.size() <= n) {
+                int k = templates.size();
+                templates.add(build(k));
+            }
+            return templates.get(n);
+        }
+
+        private Template build(int k) {
+            long size = 0;
+            for (int i = 0; i < kinds.length; i++) {
+                if (kinds[i] == SELF) {
+                    size += k == 0 ? 1 : 1 + sizes.get(k - 1);
+                } else {
+                    size += kinds[i] == LINE && srcs[i] != null ? 2 : 1;
+                }
+            }
+            sizes.add((int) Math.min(size, Integer.MAX_VALUE));
+            if (size > MAX_TEMPLATE_SIZE || (k > 0 && templates.get(k - 1) == null)) {
+                return null;
+            }
+
+            Template result = new Template((int) size);
+            Template sub = k == 0 ? null : templates.get(k - 1);
+            for (int i = 0; i < kinds.length; i++) {
+                FractalPoint dest = dests[i];
+                switch (kinds[i]) {
+                    case SELF:
+                        if (sub == null) {
+                            result.add(true, dest.getX(), dest.getY());
+                        } else {
+                            // map (0, 0) to the source and (1, 0) to dest
+                            double sx = srcs[i].getX();
+                            double sy = srcs[i].getY();
+                            double dx = dest.getX() - sx;
+                            double dy = dest.getY() - sy;
+                            result.add(false, sx, sy);
+                            for (int j = 0; j < sub.size; j++) {
+                                double x = sub.coords[2 * j];
+                                double y = sub.coords[2 * j + 1];
+                                result.add(sub.drawn[j],
+                                        sx + dx * x - dy * y,
+                                        sy + dy * x + dx * y);
+                            }
+                        }
+                        break;
+                    case LINE:
+                        if (srcs[i] != null) {
+                            result.add(false, srcs[i].getX(), srcs[i].getY());
+                        }
+                        result.add(true, dest.getX(), dest.getY());
+                        break;
+                    default:
+                        result.add(false, 0, 0);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return The result of rendering the body to n levels
+         */
+        private FractalPoint result(int n) {
+            while (results.size() <= n) {
+                int k = results.size();
+                FractalPoint sub = k == 0 ? null : results.get(k - 1);
+                FractalPoint result = FractalPoint.ORIGIN;
+                for (int i = 0; i < kinds.length; i++) {
+                    if (kinds[i] == SELF && sub != null) {
+                        result = combine(result, combine(dests[i], sub));
+                    } else if (kinds[i] != HOME) {
+                        result = combine(result, dests[i]);
+                    }
+                }
+                results.add(result);
+            }
+            return results.get(n);
+        }
+    }
+}
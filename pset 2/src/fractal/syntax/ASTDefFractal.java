@@ -11,10 +11,12 @@ import java.util.ArrayList;
 public class ASTDefFractal extends ASTStatement {
 
     String name;
+    int slot;
     ASTStmtSequence body;
 
     public ASTDefFractal(String name, ASTStmtSequence body) {
         this.name = name;
+        this.slot = SymbolTable.intern(name);
         this.body = body;
     }
     
@@ -22,6 +24,13 @@ public class ASTDefFractal extends ASTStatement {
         return name;
     }
 
+    /**
+     * @return The symbol id of the fractal's name (see SymbolTable)
+     */
+    public int getSlot() {
+        return slot;
+    }
+
     public ASTStmtSequence getBody() {
         return body;
     }
@@ -10,10 +10,12 @@ import fractal.sys.FractalException;
 */
 public class ASTDrawFractal extends ASTStatement {
     String fractalName;
+    int slot;
 
   public ASTDrawFractal (String name, ASTExp srcExp, ASTExp destExp) {
       super("DRAW SELF", srcExp, destExp);
       fractalName = name;
+      slot = SymbolTable.intern(name);
   }
   
   public ASTDrawFractal(String name, ASTExp destExp) {
@@ -23,6 +25,13 @@ public class ASTDrawFractal extends ASTStatement {
   public String getFractalName() {
       return fractalName;
   }
+
+  /**
+   * @return The symbol id of the fractal's name (see SymbolTable)
+   */
+  public int getSlot() {
+      return slot;
+  }
   
   public ASTExp getSrcExp() {
       return (ASTExp) getSubTree(0);
@@ -10,15 +10,24 @@ import fractal.sys.FractalException;
 */
 public class ASTExpPtVar extends ASTExp {
   String var;
+  int slot;
 
   public ASTExpPtVar (String var) {
     this.var = var;
+    this.slot = SymbolTable.intern(var);
   }
 
   public String getVar() {
     return var;
   }
 
+  /**
+   * @return The symbol id of the variable (see SymbolTable)
+   */
+  public int getSlot() {
+    return slot;
+  }
+
   @Override
   public <S, T> T visit(Visitor<S, T> v, S state) throws FractalException {
     return v.visitASTExpPtVar(this, state);
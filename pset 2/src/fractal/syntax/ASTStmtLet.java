@@ -14,10 +14,12 @@ import fractal.sys.FractalException;
 public class ASTStmtLet extends ASTStatement {
     
     String id;
+    int slot;
     
     public ASTStmtLet(String id, ASTExp ptExp) {
         super("LET " + id, ptExp);
         this.id = id;
+        this.slot = SymbolTable.intern(id);
     }
 
     /**
@@ -27,6 +29,14 @@ public class ASTStmtLet extends ASTStatement {
     public String getId() {
         return id;
     }
+
+    /**
+     *
+     * @return The symbol id of the variable being bound (see SymbolTable).
+     */
+    public int getSlot() {
+        return slot;
+    }
     
     /**
      *
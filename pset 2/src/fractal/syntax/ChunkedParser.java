@@ -0,0 +1,222 @@
+package fractal.syntax;
+
+import fractal.sys.FractalException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java_cup.runtime.Symbol;
+
+/**
+ * A parser of long FRACTAL sources (libraries of definitions, say) that
+ * splits the source into chunks of whole top-level statements and parses the
+ * chunks concurrently, each with its own FractalParser.  The statements of
+ * the chunks are reassembled in source order into one program, the same as
+ * a FractalParser would have made of the whole source.
+ *
+ * The source is split at the start of lines that begin top-level statements.
+ * To find one near each desired split, a FractalLexer is run from the start
+ * of a nearby line, and the depth of FRACTAL ... END definitions followed
+ * relative to it.  A line is taken to begin a top-level statement when it
+ * begins a FRACTAL definition (definitions are not usually nested), or any
+ * statement whose depth has not dropped (by an END) within LOOKAHEAD tokens.
+ * A split that turns out to lie within a definition leaves an unclosed
+ * FRACTAL in the chunk before it, which then fails to parse; if any chunk
+ * fails to parse, the whole source is parsed again by one FractalParser, so
+ * that the result (or syntax error) is always that of the serial parser.
+ *
+ * @author newts
+ */
+public class ChunkedParser {
+
+    /** Sources (and chunks) shorter than this many chars are not split */
+    public static final int MIN_CHUNK = 1 << 16;
+
+    /** The number of tokens after a statement that must not close a
+     * definition for the statement to be taken as top-level */
+    public static final int LOOKAHEAD = 256;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+
+    public ChunkedParser() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a parser that parses with the given number of threads.
+     * @param parallelism The number of chunks parsed at once
+     */
+    public ChunkedParser(int parallelism) {
+        this.parallelism = parallelism;
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Parse the given source.
+     * @param source The text of a FRACTAL program
+     * @return The program
+     * @throws Exception if the source cannot be parsed (as
+     * FractalParser.parse would throw)
+     */
+    public ASTProgram parse(String source) throws Exception {
+        int[] bounds = split(source, chunks(source.length()));
+        if (bounds.length > 2) {
+            ArrayList<ForkJoinTask<ASTProgram>> parts = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                String chunk = source.substring(bounds[i], bounds[i + 1]);
+                parts.add(pool.submit(() -> parseChunk(chunk)));
+            }
+            ASTStmtSequence stmts = new ASTStmtSequence();
+            boolean failed = false;
+            for (ForkJoinTask<ASTProgram> part : parts) {
+                try {
+                    stmts.getSeq().addAll(part.get().getStatements().getSeq());
+                } catch (ExecutionException ee) {
+                    // a bad split or a syntax error: either way, the serial
+                    // parser decides
+                    failed = true;
+                }
+            }
+            if (!failed) {
+                return new ASTProgram(stmts);
+            }
+        }
+        return (ASTProgram) new FractalParser(new FractalLexer(
+                new StringReader(source))).parse().value;
+    }
+
+    private int chunks(int length) {
+        if (parallelism < 2) {
+            return 1;
+        }
+        // a few chunks per thread, so that uneven ones balance out
+        return Math.max(1, Math.min(4 * parallelism, length / MIN_CHUNK));
+    }
+
+    private static ASTProgram parseChunk(String chunk) throws Exception {
+        FractalParser parser = new FractalParser(new FractalLexer(
+                new StringReader(chunk))) {
+            // errors are reported (if they are real) by the serial parse
+
+            @Override
+            public void report_error(String message, Object info) {
+            }
+
+            @Override
+            public void syntax_error(Symbol cur_token) {
+            }
+        };
+        return (ASTProgram) parser.parse().value;
+    }
+
+    /**
+     * Find where to split the given source into (up to) the given number of
+     * chunks.
+     * @param source The text of a FRACTAL program
+     * @param n The desired number of chunks
+     * @return The offsets of the chunks, in increasing order, starting with 0
+     * and ending with the length of the source
+     */
+    static int[] split(String source, int n) {
+        ArrayList<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        for (int i = 1; i < n; i++) {
+            int from = Math.max(bounds.get(bounds.size() - 1) + MIN_CHUNK,
+                    (int) ((long) source.length() * i / n));
+            int bound = from < source.length()
+                    ? statementAfter(source, lineAfter(source, from, 1)) : -1;
+            if (bound < 0) {
+                break;
+            }
+            bounds.add(bound);
+        }
+        bounds.add(source.length());
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return The offset of the first line, from the given one, that appears
+     * to begin a top-level statement, or -1 if there is none (or the lexer
+     * fails, which the serial parser will report)
+     */
+    private static int statementAfter(String source, int start) {
+        if (start >= source.length()) {
+            return -1;
+        }
+        StringReader in = new StringReader(source);
+        try {
+            in.skip(start);
+        } catch (IOException ioe) {
+            // not possible for a StringReader
+            return -1;
+        }
+        FractalLexer lexer = new FractalLexer(in);
+        int depth = 0;
+        int minDepth = 0;
+        int prevLine = 0;
+        int candLine = -1;
+        int candDepth = 0;
+        int since = 0;
+        try {
+            for (Symbol token = lexer.next_token(); token.sym != sym.EOF;
+                    token = lexer.next_token()) {
+                int line = lexer.getLine();
+                boolean firstOnLine = line > prevLine;
+                prevLine = line;
+                if (candLine < 0 && firstOnLine && depth == minDepth
+                        && StatementStream.beginsStatement(token.sym)) {
+                    candLine = line;
+                    candDepth = depth;
+                    since = 0;
+                    if (token.sym == sym.FRACTAL) {
+                        break;
+                    }
+                } else if (candLine >= 0 && ++since > LOOKAHEAD) {
+                    break;
+                }
+                if (token.sym == sym.FRACTAL) {
+                    depth++;
+                } else if (token.sym == sym.END) {
+                    depth--;
+                    minDepth = Math.min(depth, minDepth);
+                    if (depth < candDepth) {
+                        // the candidate was within a definition
+                        candLine = -1;
+                    }
+                }
+            }
+        } catch (IOException | FractalException e) {
+            return -1;
+        }
+        return candLine < 0 ? -1 : lineAfter(source, start, candLine - 1);
+    }
+
+    /**
+     * @return The offset of the start of the line the given number of lines
+     * after the one containing the given offset (counting lines as the lexer
+     * does), or the length of the source if there are not that many
+     */
+    private static int lineAfter(String source, int from, int lines) {
+        int i = from;
+        while (lines > 0 && i < source.length()) {
+            char c = source.charAt(i++);
+            switch (c) {
+                case '\r':
+                    if (i < source.length() && source.charAt(i) == '\n') {
+                        i++;
+                    }
+                    lines--;
+                    break;
+                case '\n', '\u000B', '\u000C', '\u0085', '\u2028', '\u2029':
+                    lines--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return i;
+    }
+}
@@ -266,6 +266,15 @@ public class FractalParser extends java_cup.runtime.lr_parser {
             lexer = l;
         }
 
+        /* A parser that takes its tokens from the given scanner, which draws
+         * them from the given lexer (whose position is reported with any
+         * syntax error), as a StatementStream does. */
+        @SuppressWarnings("deprecation") // (as the constructor above uses)
+        public FractalParser(Scanner s, FractalLexer l) {
+            super(s);
+            lexer = l;
+        }
+
         public void report_error(String message, Object info) {
             System.err.println(message);
         }
@@ -0,0 +1,139 @@
+package fractal.syntax;
+
+import fractal.sys.FractalException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.NoSuchElementException;
+import java_cup.runtime.Scanner;
+import java_cup.runtime.Symbol;
+
+/**
+ * The top-level statements of a FRACTAL program, parsed one at a time as
+ * they are asked for, so that a program can be evaluated while it is still
+ * being read, without its whole tree ever being built (see
+ * FractalEvaluator.evalStatements).  However long the program, only the tree
+ * of the current statement (and the lexer's buffer) is held.
+ *
+ * Every top-level statement begins with a keyword that only begins statements
+ * (FRACTAL, DRAW, LET, CLEAR or HOME), so outside a FRACTAL ... END
+ * definition, such a keyword ends the statement before it.  The stream stands
+ * between the lexer and the parser, and presents that keyword to the parser
+ * as the end of its input, keeping it to begin the next statement.
+ *
+ * After a syntax error, the stream is left within the statement in error, and
+ * cannot be read further.
+ *
+ * @author newts
+ */
+public class StatementStream implements Scanner {
+
+    private final FractalLexer lexer;
+    private final FractalParser parser;
+    /** the next token from the lexer, or null if it has not been read */
+    private Symbol pending;
+    /** true once the current statement's first token has been parsed */
+    private boolean started;
+    /** the number of FRACTAL definitions open in the current statement */
+    private int depth;
+
+    /**
+     * Create a stream of the statements read from the given input.
+     * @param input The source of the program
+     */
+    public StatementStream(Reader input) {
+        lexer = new FractalLexer(input);
+        parser = new FractalParser(this, lexer);
+        pending = null;
+        started = false;
+        depth = 0;
+    }
+
+    /**
+     *
+     * @return The lexer from which the statements' tokens are read
+     */
+    public FractalLexer getLexer() {
+        return lexer;
+    }
+
+    /**
+     *
+     * @return true if there is another statement to be read
+     * @throws FractalException if the input cannot be read, or contains an
+     * unrecognised token
+     */
+    public boolean hasNext() throws FractalException {
+        return peek().sym != sym.EOF;
+    }
+
+    /**
+     * Parse the next statement.
+     * @return The statement
+     * @throws FractalException if the input cannot be read, or the statement
+     * cannot be parsed
+     * @throws NoSuchElementException if there are no more statements
+     */
+    public ASTStatement next() throws FractalException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        started = false;
+        depth = 0;
+        ASTProgram program;
+        try {
+            program = (ASTProgram) parser.parse().value;
+        } catch (FractalException fe) {
+            throw fe;
+        } catch (Exception e) {
+            // (the parser has already reported where the error was)
+            throw new FractalException(e.getMessage(), e);
+        }
+        return program.getStatements().getSeq().get(0);
+    }
+
+    /**
+     * Pass the next token of the current statement to the parser, or the end
+     * of input once the statement is complete.
+     * @return The next token of the current statement, or EOF
+     * @throws FractalException if the input cannot be read, or contains an
+     * unrecognised token
+     */
+    @Override
+    public Symbol next_token() throws FractalException {
+        Symbol token = peek();
+        if (token.sym == sym.EOF
+                || depth == 0 && started && beginsStatement(token.sym)) {
+            // the statement is complete; keep the token for the next one (the
+            // parser asks for a token after the end, and a token may only be
+            // given to it once)
+            return new Symbol(sym.EOF);
+        }
+        pending = null;
+        started = true;
+        if (token.sym == sym.FRACTAL) {
+            depth++;
+        } else if (token.sym == sym.END) {
+            depth--;
+        }
+        return token;
+    }
+
+    private Symbol peek() throws FractalException {
+        if (pending == null) {
+            try {
+                pending = lexer.next_token();
+            } catch (IOException ioe) {
+                throw new FractalException(ioe.getMessage(), ioe);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return true if the given token begins a statement
+     */
+    static boolean beginsStatement(int token) {
+        return token == sym.FRACTAL || token == sym.DRAW || token == sym.LET
+                || token == sym.CLEAR || token == sym.HOME;
+    }
+}
@@ -0,0 +1,75 @@
+package fractal.syntax;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The table of the identifiers read by the lexer, each of which is interned
+ * as a small integer (its symbol id) when the node that refers to it is
+ * built.  An Environment stores the value of an identifier at the index of
+ * its symbol id, so that looking it up during evaluation is an array load
+ * rather than a hash of its name.
+ *
+ * Symbol ids are never reused, and the table is shared by all parsers (which
+ * may intern identifiers concurrently), so that an id means the same name in
+ * every program and every environment.
+ *
+ * @author newts
+ */
+public final class SymbolTable {
+
+    private static final ConcurrentHashMap<String, Integer> IDS =
+            new ConcurrentHashMap<>();
+
+    /** the names of the symbols, indexed by id (only count are in use) */
+    private static volatile String[] names = new String[64];
+    private static volatile int count = 0;
+
+    private SymbolTable() {
+    }
+
+    /**
+     * Return the symbol id of the given identifier, allocating one if it has
+     * not been seen before.
+     * @param name The identifier
+     * @return Its symbol id
+     */
+    public static int intern(String name) {
+        Integer id = IDS.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (SymbolTable.class) {
+            id = IDS.get(name);
+            if (id == null) {
+                id = count;
+                if (id == names.length) {
+                    names = Arrays.copyOf(names, 2 * id);
+                }
+                names[id] = name;
+                count = id + 1;
+                // (published last, so that any thread that sees the id can
+                // also see its name)
+                IDS.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     *
+     * @param id A symbol id
+     * @return The identifier with the given id
+     */
+    public static String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     *
+     * @return The number of symbol ids allocated so far
+     */
+    public static int size() {
+        return count;
+    }
+}
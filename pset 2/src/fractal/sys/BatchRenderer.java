@@ -0,0 +1,534 @@
+package fractal.sys;
+
+import fractal.semantics.FractalEvaluator;
+import fractal.semantics.FractalEvents;
+import fractal.semantics.FractalState;
+import fractal.semantics.MappedSegmentStore;
+import fractal.semantics.PathHash;
+import fractal.semantics.SegmentFileSink;
+import fractal.semantics.SegmentSink;
+import fractal.semantics.ParallelFractalEvaluator;
+import fractal.semantics.SegmentStore;
+import fractal.semantics.TeeSink;
+import fractal.syntax.ASTProgram;
+import fractal.syntax.ChunkedParser;
+import fractal.syntax.StatementStream;
+import fractal.values.FractalValue;
+import java.awt.Color;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * A headless entry point that renders many FRACTAL programs at once, without
+ * opening a window.  Unlike the Repl, which runs every file against one shared
+ * state, each program is evaluated by its own evaluator, in its own
+ * FractalState, so that the programs cannot affect one another, and they are
+ * evaluated in parallel by a fixed number of worker threads.  (The parallel
+ * engine evaluates each program on all of those threads, so the programs are
+ * then evaluated one at a time.)
+ *
+ * For each program NAME.fal, a report NAME.txt is written to the output
+ * directory, giving the program's result, the resultant point and hash of its
+ * path (as the Repl prints them), and the time its evaluation took.  With
+ * -s, an image of the path is written to NAME.png too (see TileRasterizer).
+ * The reports are arranged as the programs are, below the deepest directory
+ * that contains them all (see outputNames), so programs of the same name in
+ * different directories do not overwrite each other's reports.
+ * Library programs given with -l (definitions shared by the catalogue, say)
+ * are evaluated in each state before its program, as the Repl would if they
+ * were given first.  With -stream, each program is evaluated a statement at a
+ * time as it is read (see StatementStream), so that very long generated
+ * programs need not be held in memory; its time then includes its parsing.
+ * With -segs, each path is also written to NAME.seg, from which it can be
+ * replayed into any sink later (see SegmentFileSink).
+ * Paths are only kept while they are drawn if their images must be fitted to
+ * them; otherwise they are only hashed (and written to their .seg files).
+ * With -spill, the paths that are kept (to be fitted to their images) are
+ * kept in temporary files instead of on the heap (see MappedSegmentStore), so
+ * that they may be longer than would fit in memory.
+ *
+ * @author newts
+ */
+public class BatchRenderer implements AutoCloseable {
+
+    public static void usage() {
+        String[] usageMsg = new String[]{
+            String.format("Usage: <javaexec> %s [options] source ...",
+                    BatchRenderer.class.getName()),
+            "",
+            "Each source is a .fal file, a directory (all of whose .fal files are",
+            "rendered) or a glob pattern, such as 'catalogue/*/*.fal'.  Options:",
+            "  -o dir     the directory to write reports and images to (out)",
+            "  -l file    a library evaluated before each program (repeatable)",
+            "  -j n       the number of threads rendering (one per CPU): programs",
+            "             are rendered n at a time, or, with the parallel engine,",
+            "             one at a time, each on n threads",
+            "  -e engine  the engine used (as for the Repl: recursive, ...)",
+            "  -r res     the resolution at which fractals are rendered",
+            "  -d depth   the max. depth to which fractals are rendered",
+            "  -s WxH     also write an image of each path, of the given size",
+            "  -v xlo,ylo,xhi,yhi  the region drawn in the images (by default,",
+            "             each image is fitted to its path)",
+            "  -stream    evaluate each program a statement at a time, as it is",
+            "             read, rather than parsing it in full first (not with",
+            "             the retained engine)",
+            "  -segs      also write the segments of each path to a .seg file",
+            "  -spill     keep each path that is kept (to fit its image) in a",
+            "             temporary file, rather than in memory, so that it may",
+            "             be longer than would fit",
+            "",
+            "The exit status is 1 if any program could not be rendered."
+        };
+        for (String line : usageMsg) {
+            System.out.println(line);
+        }
+    }
+
+    private final String engine;
+    private final List<Path> libraries;
+    private final Path outDir;
+    private final Float resolution;
+    private final Integer maxDepth;
+    private final int width;
+    private final int height;
+    /** the region drawn in the images, or null to fit each to its path */
+    private final double[] extents;
+    private final boolean streaming;
+    private final boolean spilling;
+    private final boolean writingSegments;
+    /** parses long programs and libraries in parallel chunks */
+    private final ChunkedParser parser;
+    /** the number of threads rendering */
+    private final int threads;
+    /** the threads shared by the parallel engine's evaluators (or null) */
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a renderer with the given settings.
+     * @param engine The name of the engine with which to evaluate (see
+     * Repl.mkEvaluator)
+     * @param libraries The programs to be evaluated before each one rendered
+     * @param outDir The directory to which reports and images are written
+     * @param resolution The resolution, or null for the state's default
+     * @param maxDepth The max. depth, or null for the state's default
+     * @param width The width of the images, or 0 if none are to be written
+     * @param height The height of the images
+     * @param extents The region drawn in the images, as {xlo, ylo, xhi, yhi}
+     * in screen coordinates, or null to fit each image to its path
+     * @param streaming true if programs are to be evaluated as they are read
+     * @param spilling true if paths are to be kept in temporary files
+     * @param writingSegments true if paths are to be written to .seg files
+     * @param threads The number of threads with which to render (see
+     * getConcurrency)
+     */
+    public BatchRenderer(String engine, List<Path> libraries, Path outDir, Float resolution,
+            Integer maxDepth, int width, int height, double[] extents,
+            boolean streaming, boolean spilling, boolean writingSegments,
+            int threads) {
+        this.engine = engine;
+        this.libraries = List.copyOf(libraries);
+        this.outDir = outDir;
+        this.resolution = resolution;
+        this.maxDepth = maxDepth;
+        this.width = width;
+        this.height = height;
+        this.extents = extents;
+        this.streaming = streaming;
+        this.spilling = spilling;
+        this.writingSegments = writingSegments;
+        this.parser = new ChunkedParser();
+        this.threads = threads;
+        this.pool = engine.equals("parallel") ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     *
+     * @return The number of programs to be rendered at once: one for the
+     * parallel engine, whose evaluators each render on all the renderer's
+     * threads, and otherwise one per thread
+     */
+    public int getConcurrency() {
+        return pool != null ? 1 : threads;
+    }
+
+    /**
+     * Create an evaluator with which to render a program.
+     * @return A new evaluator of the renderer's engine, or null if the engine
+     * is not recognised
+     */
+    public FractalEvaluator mkEvaluator() {
+        if (pool != null) {
+            // (an evaluator of its own would start threads of its own)
+            return new ParallelFractalEvaluator(pool);
+        }
+        return Repl.mkEvaluator(engine);
+    }
+
+    /**
+     * Stop the threads that the renders share, once they are done.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Render the given program, and write its report (and image).
+     * @param file The program
+     * @param name The name of its report (and image), without the extension,
+     * relative to the output directory
+     * @return The summary of its rendering (the report's last line)
+     * @throws Exception if it could not be read, parsed or evaluated, or its
+     * report or image could not be written
+     */
+    public String render(Path file, Path name) throws Exception {
+        if (name.getParent() != null) {
+            Files.createDirectories(outDir.resolve(name.getParent()));
+        }
+        FractalEvaluator evaluator = mkEvaluator();
+        TileRasterizer raster = null;
+        MappedSegmentStore spill = null;
+        SegmentFileSink segments = null;
+        SegmentSink sink;
+        try {
+            if (writingSegments) {
+                segments = new SegmentFileSink(outDir.resolve(name + ".seg"));
+            }
+            if (width == 0) {
+                // the path need not be kept: only its hash is reported
+                sink = segments != null ? segments : new PathHash();
+            } else {
+                if (extents != null) {
+                    // the path need not be kept: it is drawn as it is made
+                    raster = mkRasterizer(extents);
+                    sink = raster;
+                } else if (spilling) {
+                    spill = new MappedSegmentStore();
+                    sink = spill;
+                } else {
+                    sink = new SegmentStore();
+                }
+                if (segments != null) {
+                    sink = new TeeSink(sink, segments);
+                }
+            }
+            evaluator.setSink(sink);
+            return render(file, name, evaluator, raster);
+        } finally {
+            if (segments != null) {
+                segments.close();
+            }
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    private String render(Path file, Path name, FractalEvaluator evaluator,
+            TileRasterizer raster) throws Exception {
+        FractalState state = evaluator.mkDefaultState();
+        if (resolution != null) {
+            state.setResolution(resolution);
+        } else if (raster != null) {
+            state.setResolution((float) ((extents[2] - extents[0]) / width));
+        }
+        if (maxDepth != null) {
+            state.setMaxDepth(maxDepth);
+        }
+        if (extents != null) {
+            // fractals that could not mark the image (allowing for the width
+            // of its lines) are not drawn
+            double[] reach = raster == null ? extents : raster.getReach();
+            state.setViewport((float) reach[0], (float) reach[1],
+                    (float) reach[2], (float) reach[3]);
+        }
+
+        // (each is parsed again for each program, since evaluation may
+        // modify the tree, e.g. by folding constants; the statements are
+        // evaluated directly, since the report gives the hash, so the
+        // summary visitFractalProgram prints is not wanted)
+        for (Path library : libraries) {
+            evaluator.visitASTStmtSequence(parse(library).getStatements(), state);
+        }
+        FractalValue result;
+        long start;
+        if (streaming) {
+            start = System.nanoTime();
+            try (Reader in = Files.newBufferedReader(file)) {
+                result = evaluator.evalStatements(new StatementStream(in), state);
+            }
+        } else {
+            ASTProgram program = parse(file);
+            start = System.nanoTime();
+            result = evaluator.visitASTStmtSequence(program.getStatements(), state);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        if (width > 0) {
+            if (raster == null) {
+                raster = mkRasterizer(fit(state.getSegments()));
+                replay(state.getSegments(), raster);
+            }
+            raster.writePng(outDir.resolve(name + ".png"));
+        }
+        String summary = String.format("Time: %d ms", millis);
+        Files.write(outDir.resolve(name + ".txt"), List.of(
+                "Result: " + result,
+                String.format("Resultant Pt: %s", state.getPathResultant()),
+                String.format("Hash: %x", state.getPathHash()),
+                summary));
+        return String.format("Hash: %x, %s", state.getPathHash(), summary);
+    }
+
+    private ASTProgram parse(Path file) throws Exception {
+        FractalEvents.Parse event = new FractalEvents.Parse();
+        event.begin();
+        try {
+            ASTProgram result = parser.parse(Files.readString(file));
+            event.succeeded = true;
+            return result;
+        } finally {
+            event.commit();
+        }
+    }
+
+    private TileRasterizer mkRasterizer(double[] region) {
+        TileRasterizer raster = new TileRasterizer(width, height,
+                TileRasterizer.viewport(region[0], region[1], region[2],
+                        region[3], width, height));
+        raster.setBackground(Color.WHITE);
+        return raster;
+    }
+
+    /**
+     * @return The region, with the aspect ratio of the images, that contains
+     * the given path with a small margin
+     */
+    private double[] fit(SegmentStore path) {
+        Rectangle2D box = path.asShape().getBounds2D();
+        double cx = box.getCenterX();
+        double cy = box.getCenterY();
+        double w = Math.max(box.getWidth(), 1e-6) * 1.05;
+        double h = Math.max(box.getHeight(), 1e-6) * 1.05;
+        if (w * height > h * width) {
+            h = w * height / width;
+        } else {
+            w = h * width / height;
+        }
+        return new double[]{cx - w / 2, cy - h / 2, cx + w / 2, cy + h / 2};
+    }
+
+    private static void replay(SegmentStore path, TileRasterizer raster) {
+        float x = 0;
+        float y = 0;
+        for (int i = 0; i < path.size(); i++) {
+            float nx = path.getX(i);
+            float ny = path.getY(i);
+            if (path.isDrawn(i)) {
+                raster.lineTo(x, y, nx, ny);
+            }
+            x = nx;
+            y = ny;
+        }
+    }
+
+    /**
+     * Find the programs named by the given sources.
+     * @param sources Files, directories and glob patterns
+     * @return The programs, in the order given (each directory's and
+     * pattern's in order of name)
+     * @throws IOException if a directory cannot be read
+     */
+    public static List<Path> expand(List<String> sources) throws IOException {
+        // (each program once, however many of the sources name it)
+        Map<Path, Path> files = new LinkedHashMap<>();
+        for (String source : sources) {
+            Path path = Path.of(source);
+            List<Path> found;
+            if (Files.isDirectory(path)) {
+                found = match(path, path.resolve("*.fal").toString());
+            } else if (source.matches(".*[*?\\[{].*")) {
+                // search from the longest part of the pattern without wildcards
+                Path base = path.isAbsolute() ? path.getRoot() : Path.of("");
+                for (Path part : path) {
+                    if (part.toString().matches(".*[*?\\[{].*")) {
+                        break;
+                    }
+                    base = base.resolve(part);
+                }
+                found = match(base, source);
+            } else {
+                found = List.of(path);
+            }
+            for (Path file : found) {
+                files.putIfAbsent(file.toAbsolutePath().normalize(), file);
+            }
+        }
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * Find the names of the reports of the given programs: their paths,
+     * without the .fal extension, relative to the deepest directory that
+     * contains them all.  Distinct programs get distinct names.
+     * @param files The programs
+     * @return The names of their reports, in the same order
+     */
+    public static List<Path> outputNames(List<Path> files) {
+        List<Path> absolute = files.stream()
+                .map(f -> f.toAbsolutePath().normalize()).toList();
+        Path root = absolute.isEmpty() ? null : absolute.get(0).getParent();
+        for (Path file : absolute) {
+            while (root != null && !file.startsWith(root)) {
+                root = root.getParent();
+            }
+        }
+        ArrayList<Path> names = new ArrayList<>();
+        for (Path file : absolute) {
+            Path relative = root != null ? root.relativize(file)
+                    : file.subpath(0, file.getNameCount());
+            names.add(relative.resolveSibling(relative.getFileName().toString()
+                    .replaceFirst("\\.fal$", "")));
+        }
+        return names;
+    }
+
+    /**
+     * @return The files below the given directory whose paths match the glob
+     */
+    private static List<Path> match(Path dir, String glob) throws IOException {
+        PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + glob);
+        try (Stream<Path> entries = Files.walk(dir)) {
+            return entries.filter(p -> Files.isRegularFile(p) && matcher.matches(p))
+                    .sorted().toList();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String engine = "recursive";
+        Path outDir = Path.of("out");
+        int threads = Runtime.getRuntime().availableProcessors();
+        Float resolution = null;
+        Integer maxDepth = null;
+        int width = 0;
+        int height = 0;
+        double[] extents = null;
+        boolean streaming = false;
+        boolean spilling = false;
+        boolean writingSegments = false;
+        ArrayList<String> sources = new ArrayList<>();
+        ArrayList<Path> libraries = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-h", "--help" -> {
+                        usage();
+                        System.exit(0);
+                    }
+                    case "-o" -> outDir = Path.of(args[++i]);
+                    case "-l" -> libraries.add(Path.of(args[++i]));
+                    case "-j" -> threads = Integer.parseInt(args[++i]);
+                    case "-e" -> engine = args[++i];
+                    case "-r" -> resolution = Float.parseFloat(args[++i]);
+                    case "-d" -> maxDepth = Integer.parseInt(args[++i]);
+                    case "-s" -> {
+                        String[] size = args[++i].split("x");
+                        width = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[1]);
+                    }
+                    case "-v" -> {
+                        String[] ext = args[++i].split(",");
+                        extents = new double[4];
+                        for (int k = 0; k < 4; k++) {
+                            extents[k] = Double.parseDouble(ext[k]);
+                        }
+                    }
+                    case "-stream" -> streaming = true;
+                    case "-spill" -> spilling = true;
+                    case "-segs" -> writingSegments = true;
+                    default -> sources.add(arg);
+                }
+            }
+        } catch (RuntimeException re) {
+            // a missing or malformed argument
+            usage();
+            System.exit(1);
+        }
+        if (sources.isEmpty() || !isEngine(engine)) {
+            usage();
+            System.exit(1);
+        } else if (streaming && engine.equals("retained")) {
+            // (it would not retain what it drew, so could not redraw it)
+            System.err.println("The retained engine cannot be used with -stream");
+            usage();
+            System.exit(1);
+        }
+
+        List<Path> files = expand(sources);
+        List<Path> names = outputNames(files);
+        Files.createDirectories(outDir);
+        int failures = 0;
+        try (BatchRenderer renderer = new BatchRenderer(engine, libraries, outDir,
+                resolution, maxDepth, width, height, extents, streaming, spilling,
+                writingSegments, threads)) {
+            ExecutorService workers =
+                    Executors.newFixedThreadPool(renderer.getConcurrency());
+            try {
+                ArrayList<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < files.size(); i++) {
+                    Path file = files.get(i);
+                    Path name = names.get(i);
+                    results.add(workers.submit(() -> renderer.render(file, name)));
+                }
+                workers.shutdown();
+                for (int i = 0; i < files.size(); i++) {
+                    String line;
+                    try {
+                        line = results.get(i).get();
+                    } catch (ExecutionException ee) {
+                        Throwable cause = ee.getCause();
+                        line = cause instanceof FractalException
+                                ? cause.getMessage() : "Error: " + cause;
+                        failures++;
+                    }
+                    System.out.println(files.get(i) + ": " + line);
+                }
+            } finally {
+                // (if the results could not all be waited for, the renders
+                // still running are stopped)
+                workers.shutdownNow();
+            }
+        }
+        System.out.flush();
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return true if the named engine is one that Repl.mkEvaluator makes
+     */
+    private static boolean isEngine(String name) {
+        FractalEvaluator evaluator = Repl.mkEvaluator(name);
+        if (evaluator instanceof ParallelFractalEvaluator parallel) {
+            // (it started threads of its own)
+            parallel.close();
+        }
+        return evaluator != null;
+    }
+}
@@ -0,0 +1,15 @@
+package fractal.sys;
+
+/**
+ * The exception raised when the rendering of a program is abandoned, because
+ * its cancellation token (see CancellationToken) has been cancelled.
+ * @author newts
+ */
+public class FractalCancelledException extends FractalException {
+    private static final long serialVersionUID = 1L;
+
+    public FractalCancelledException() {
+        super("Rendering cancelled");
+    }
+
+}
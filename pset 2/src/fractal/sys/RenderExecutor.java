@@ -0,0 +1,129 @@
+package fractal.sys;
+
+import fractal.semantics.AbstractFractalEvaluator;
+import fractal.semantics.CancellationToken;
+import java.awt.EventQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs renders (the evaluation of commands, and redrawing) one at a time on a
+ * dedicated thread, so that the event thread stays responsive while they run,
+ * and publishes their results back to the event thread when they are done.
+ *
+ * Each render is given its own CancellationToken, which is installed on the
+ * evaluator while it runs.  Submitting a render cancels the one in progress
+ * (and any still waiting), which then stops at its next expansion of a
+ * fractal, with a FractalCancelledException.  A cancelled render still runs,
+ * and its result is still published, so that the statements that precede its
+ * first DRAW of a fractal take effect, and the cancellation is reported.
+ *
+ * Redraws (see redraw), which only change the view of what has been drawn,
+ * supersede earlier redraws, but not the programs submitted before them.
+ * Everything that reads or changes the state of the evaluator's programs
+ * should be run by the executor, since the render thread may be using it.
+ *
+ * @author newts
+ */
+public class RenderExecutor {
+
+    private final AbstractFractalEvaluator evaluator;
+    private final ExecutorService thread;
+    /** the token of the last render submitted */
+    private CancellationToken current;
+    /** the token of the last redraw submitted */
+    private CancellationToken redrawing;
+
+    /**
+     * Create an executor for renders done by the given evaluator.  All
+     * evaluation by the evaluator should go through this executor afterwards.
+     * @param evaluator The evaluator that the renders use
+     */
+    public RenderExecutor(AbstractFractalEvaluator evaluator) {
+        this.evaluator = evaluator;
+        this.thread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "fractal-render");
+            // (it must not keep the application alive)
+            t.setDaemon(true);
+            return t;
+        });
+        this.current = null;
+        this.redrawing = null;
+    }
+
+    /**
+     * Cancel the render in progress, and run the given one once it has
+     * stopped.
+     * @param <T> The type of the render's result
+     * @param render The render
+     * @param onDone What to do with its result, on the event thread (may be
+     * null)
+     * @return The pending result of the render
+     */
+    public synchronized <T> Future<T> submit(Callable<T> render,
+            Consumer<T> onDone) {
+        cancel();
+        current = new CancellationToken();
+        return run(current, render, onDone);
+    }
+
+    /**
+     * Cancel the redraw in progress (if it is one), and run the given one
+     * once the renders submitted before it have finished.
+     * @param <T> The type of the redraw's result
+     * @param render The redraw
+     * @param onDone What to do with its result, on the event thread (may be
+     * null)
+     * @return The pending result of the redraw
+     */
+    public synchronized <T> Future<T> redraw(Callable<T> render,
+            Consumer<T> onDone) {
+        if (redrawing != null) {
+            redrawing.cancel();
+        }
+        redrawing = new CancellationToken();
+        return run(redrawing, render, onDone);
+    }
+
+    private <T> Future<T> run(CancellationToken token, Callable<T> render,
+            Consumer<T> onDone) {
+        return thread.submit(() -> {
+            evaluator.setCancellation(token);
+            T result;
+            try {
+                result = render.call();
+            } finally {
+                evaluator.setCancellation(null);
+            }
+            if (onDone != null) {
+                EventQueue.invokeLater(() -> onDone.accept(result));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Cancel the render in progress, and any still waiting to run (redraws
+     * included).
+     */
+    public synchronized void cancel() {
+        if (current != null) {
+            current.cancel();
+        }
+        if (redrawing != null) {
+            redrawing.cancel();
+        }
+    }
+
+    /**
+     * Cancel all renders, and stop the thread once the current one has
+     * stopped.
+     */
+    public void shutdown() {
+        cancel();
+        thread.shutdown();
+    }
+}
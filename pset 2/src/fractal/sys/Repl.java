@@ -6,27 +6,46 @@ import cs34q.gfx.FileHandler;
 import cs34q.gfx.GraphingPanel;
 import cs34q.gfx.PenTip;
 import fractal.semantics.FractalEvaluator;
+import fractal.semantics.FractalEvents;
+import fractal.semantics.FractalRenderStats;
 import fractal.semantics.FractalState;
+import fractal.semantics.IterativeFractalEvaluator;
+import fractal.semantics.ParallelFractalEvaluator;
+import fractal.semantics.RetainedFractalEvaluator;
+import fractal.semantics.TemplateFractalEvaluator;
+import fractal.syntax.ASTStatement;
+import fractal.syntax.ChunkedParser;
 import fractal.syntax.FractalLexer;
 import fractal.syntax.FractalParser;
+import fractal.syntax.StatementStream;
 import fractal.values.FractalPoint;
 import fractal.values.FractalValue;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.geom.GeneralPath;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java_cup.runtime.*;
 import java.io.*;
 import java.util.Scanner;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import lib3652.util.ASTNode;
 import lib3652.util.Walker;
 import lib3652.util.Result;
+import lib3652.util.ResultType;
 import lib3652.util.TokenException;
+import lib3652.util.VisitException;
 import lib3652.util.MainHelper;
 import lib3652.util.PersistentWalker;
 
 public class Repl {
 
+    /** The least time between showing the path of a streamed program, in ns */
+    private static final long SHOW_INTERVAL = 200_000_000L;
+
     /*
     public static final String PROMPT = "> ";
 
@@ -37,9 +56,25 @@ public class Repl {
 
     public static void usage() {
 	String[] usageMsg = new String[]{
-	    String.format("Usage: <javaexec> %s [file ...]", 
+	    String.format("Usage: <javaexec> %s [-e engine] [-p] [-m] [-c] [-stream] [file ...]", 
                       Repl.class.getName()),
 	    "",
+	    "The engine used to evaluate programs may be selected with -e.  It",
+	    "may be one of: recursive (the default), iterative, parallel, template,",
+	    "retained (which redraws what it has drawn when the view changes).",
+	    "With -p, the retained engine draws progressively, showing each level",
+	    "of detail as soon as it has been drawn.",
+	    "With -m, statistics about each DRAW are published through JMX,",
+	    String.format("as the MXBean %s.", FractalRenderStats.OBJECT_NAME),
+	    "With -c, fractals that lie wholly outside the window are not drawn,",
+	    "which speeds up zoomed-in views.  Only the retained engine draws",
+	    "them when the view changes to include them; with the others, they",
+	    "appear once the program is run again.",
+	    "With -stream, the files given are evaluated a statement at a time",
+	    "as they are read, rather than parsed in full first, so that very",
+	    "long programs start drawing at once, in little memory.  It cannot",
+	    "be used with the retained engine.",
+	    "",
 	    "The sequence of filenames provided afterwards is optional.  Each",
 	    "will be read and traversed in the order given.  If a '-' is",
 	    "specified, input will be read from stdin.  If no files are given,",
@@ -53,6 +88,11 @@ public class Repl {
     public static <S, T> void main(String args[]) {
 	int n = args.length;
 	String walkerName = "";
+	String engineName = "recursive";
+	boolean progressive = false;
+	boolean metrics = false;
+	boolean culling = false;
+	boolean streaming = false;
 	ArrayList<String> filenames = new ArrayList<>();
         
 	// Parse command line arguments
@@ -64,32 +104,166 @@ public class Repl {
 	    } else if (arg.equals("-w")) {
 		walkerName = args[i+1];
 		i += 1;
+	    } else if (arg.equals("-e")) {
+		engineName = args[i+1];
+		i += 1;
+	    } else if (arg.equals("-p")) {
+		progressive = true;
+	    } else if (arg.equals("-m")) {
+		metrics = true;
+	    } else if (arg.equals("-c")) {
+		culling = true;
+	    } else if (arg.equals("-stream")) {
+		streaming = true;
 	    } else {
 		filenames.add(arg);
 	    }
 	}
-        FractalEvaluator fEval = new FractalEvaluator();
+        if (streaming && engineName.equals("retained")) {
+            // (it would not retain what it drew, so could not redraw it)
+            System.err.println("The retained engine cannot be used with -stream");
+            usage();
+            System.exit(1);
+        }
+        FractalEvaluator fEval = mkEvaluator(engineName);
+        if (fEval == null) {
+            System.err.println("Unknown engine: " + engineName);
+            usage();
+            System.exit(1);
+        }
+        if (metrics) {
+            FractalRenderStats stats = new FractalRenderStats();
+            fEval.setRenderStats(stats);
+            try {
+                stats.register(FractalRenderStats.OBJECT_NAME);
+            } catch (javax.management.JMException jme) {
+                System.err.println("Statistics unavailable: " + jme.getMessage());
+                fEval.setRenderStats(null);
+            }
+        }
+        // long programs (libraries of definitions) are parsed in parallel
+        ChunkedParser chunks = new ChunkedParser();
         PersistentWalker<FractalState, FractalValue> walker =
                 new PersistentWalker<FractalState, FractalValue>(fEval) {
                     @Override
                     public lr_parser mkParser(Reader input) {
-                        return new FractalParser(new FractalLexer(input));
+                        return new FractalParser(new FractalLexer(input)) {
+                            @Override
+                            public Symbol parse() throws Exception {
+                                FractalEvents.Parse event = new FractalEvents.Parse();
+                                event.begin();
+                                try {
+                                    StringWriter text = new StringWriter();
+                                    input.transferTo(text);
+                                    Symbol result = new Symbol(0,
+                                            chunks.parse(text.toString()));
+                                    event.succeeded = true;
+                                    return result;
+                                } finally {
+                                    event.commit();
+                                }
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void visitExceptionHook(VisitException ve,
+                            PrintStream out, PrintStream err) {
+                        if (ve instanceof FractalCancelledException) {
+                            // superseded by another command; not an error
+                            err.println(ve.getMessage());
+                        } else {
+                            super.visitExceptionHook(ve, out, err);
+                        }
                     }
                 };
+        // programs are run off the event thread, so that the window stays
+        // responsive, and a new command can cancel a long render
+        RenderExecutor renders = new RenderExecutor(fEval);
         walker.setDebugging(true);
         FractalState state = walker.getState();
         
         CanvasFrame frame = new CanvasFrame("FRACTAL Display");
         GraphingPanel canvas = frame.getGraphArea();
         PenTip defaultPen = new PenTip(2, Color.BLACK);	
-        canvas.addPath(state.getShape(), defaultPen);
+        // the canvas shows a copy of the path, which the render thread takes
+        // whenever it has drawn something to show (it cannot be painted while
+        // it is being drawn)
+        GeneralPath shown = new GeneralPath();
+        canvas.addPath(shown, defaultPen);
+        Consumer<GeneralPath> show = drawn -> {
+            shown.reset();
+            shown.append(drawn, false);
+            canvas.repaint();
+        };
+        boolean cull = culling;
+        if (progressive && fEval instanceof RetainedFractalEvaluator retained) {
+            retained.setProgressListener((level, complete, st) -> {
+                // paint each level before the path is cleared for the next
+                GeneralPath drawn = snapshot(st);
+                Runnable paint = () -> {
+                    show.accept(drawn);
+                    canvas.paintImmediately(0, 0, canvas.getWidth(),
+                            canvas.getHeight());
+                };
+                if (java.awt.EventQueue.isDispatchThread()) {
+                    paint.run();
+                } else {
+                    try {
+                        java.awt.EventQueue.invokeAndWait(paint);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    } catch (java.lang.reflect.InvocationTargetException ite) {
+                        ite.getCause().printStackTrace();
+                    }
+                }
+            });
+        }
         
         canvas.addListener(new PropertyChangeListener() {
             @Override
             public void propertyChange(PropertyChangeEvent pce) {
                 if (pce.getPropertyName().equals(GraphingPanel.EVT_EXTENTS_CHANGED)) {
                     float res = getResolution(canvas);
-                    state.setResolution(res);
+                    float[] viewport = null;
+                    if (cull && pce.getNewValue() instanceof float[] ext) {
+                        // fractals wholly outside the new extents (allowing
+                        // for the width of the pen) are skipped
+                        float padX = (float) ((defaultPen.getSize() / 2 + 1)
+                                / Math.abs(canvas.getXScale()));
+                        float padY = (float) ((defaultPen.getSize() / 2 + 1)
+                                / Math.abs(canvas.getYScale()));
+                        viewport = new float[]{ext[0] - padX, ext[1] - padY,
+                            ext[2] + padX, ext[3] + padY};
+                    }
+                    // (the state is changed by the render thread, after the
+                    // renders that are using it)
+                    float[] view = viewport;
+                    Runnable reframe = () -> {
+                        state.setResolution(res);
+                        if (view != null) {
+                            state.setViewport(view[0], view[1], view[2], view[3]);
+                        }
+                    };
+                    if (fEval instanceof RetainedFractalEvaluator retained) {
+                        renders.redraw(() -> {
+                            reframe.run();
+                            try {
+                                retained.rerender(state);
+                            } catch (FractalCancelledException fce) {
+                                // superseded by a later change
+                            } catch (FractalException fe) {
+                                System.err.println(fe.getMessage());
+                            }
+                            publish(state, show);
+                            return null;
+                        }, null);
+                    } else {
+                        renders.redraw(() -> {
+                            reframe.run();
+                            return null;
+                        }, null);
+                    }
                     System.out.println(String.format("Changing resolution to %.3f", 
                             res));
                 }
@@ -99,9 +273,16 @@ public class Repl {
         frame.addCmdListener(new CmdListener() {
             @Override
             public void cmdReceived(String text, CanvasFrame frame) {
-                Result res = walker.readParseWalk(new StringReader(text));
-                frame.display(walker.mkOutput(res)+"\n\n");
-                canvas.repaint();
+                if (text.isBlank()) {
+                    // an empty command just stops the current render
+                    renders.cancel();
+                    return;
+                }
+                renders.submit(() -> {
+                    Result res = walker.readParseWalk(new StringReader(text));
+                    publish(state, show);
+                    return res;
+                }, res -> frame.display(walker.mkOutput(res)+"\n\n"));
             }
         });
         
@@ -109,10 +290,23 @@ public class Repl {
             
             @Override
             public String processFile(Reader fileReader) {
-                Result res = walker.readParseWalk(fileReader);
-                frame.display("\n Read input from file ...\n");
-                frame.display(res.toString());
-                return res.toString();
+                // (the reader may be closed once this returns)
+                StringWriter text = new StringWriter();
+                try {
+                    fileReader.transferTo(text);
+                } catch (IOException ioe) {
+                    return ioe.getMessage();
+                }
+                renders.submit(() -> {
+                    Result res = walker.readParseWalk(
+                            new StringReader(text.toString()));
+                    publish(state, show);
+                    return res;
+                }, res -> {
+                    frame.display("\n Read input from file ...\n");
+                    frame.display(res.toString());
+                });
+                return "Rendering input from file ...";
             }
         };
         
@@ -120,14 +314,183 @@ public class Repl {
         
         // canvas.addPath(state.getShape(), new PenTip(1, Color.BLACK));
         //canvas.setBackground(Color.decode("0x4080FF"));
-        java.awt.EventQueue.invokeLater(() -> {
-            frame.setVisible(true);
-            // set the resolution of the curren state based on the size of the frame
-            float res = getResolution(canvas);
-            // System.out.println(String.format("Setting initial resolution to %.3f", res));
-            state.setResolution(res);
-        });
-        MainHelper.walkFiles(walker, filenames);
+        try {
+            java.awt.EventQueue.invokeAndWait(() -> {
+                frame.setVisible(true);
+                // set the resolution of the curren state based on the size of the frame
+                float res = getResolution(canvas);
+                // System.out.println(String.format("Setting initial resolution to %.3f", res));
+                renders.redraw(() -> {
+                    state.setResolution(res);
+                    return null;
+                }, null);
+            });
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (java.lang.reflect.InvocationTargetException ite) {
+            ite.getCause().printStackTrace();
+        }
+        // the input is read on this thread (stdin may keep it waiting
+        // indefinitely), and each program read is run by the render thread
+        if (streaming) {
+            streamFiles(renders, fEval, state, filenames, show);
+        } else {
+            MainHelper.walkFiles(new Walker<FractalState, FractalValue>() {
+                @Override
+                public void setVerbose(boolean verbose) {
+                    walker.setVerbose(verbose);
+                }
+
+                @Override
+                public boolean isVerbose() {
+                    return walker.isVerbose();
+                }
+
+                @Override
+                public FractalValue walk(ASTNode<? extends ASTNode<?>> node)
+                        throws VisitException {
+                    return walker.walk(node);
+                }
+
+                @Override
+                public lr_parser mkParser(Reader input) {
+                    return walker.mkParser(input);
+                }
+
+                @Override
+                public Result readParseWalk(Reader input) {
+                    StringWriter text = new StringWriter();
+                    try {
+                        input.transferTo(text);
+                        return renders.submit(() -> {
+                            Result res = walker.readParseWalk(
+                                    new StringReader(text.toString()));
+                            publish(state, show);
+                            return res;
+                        }, null).get();
+                    } catch (IOException ioe) {
+                        return new Result(ResultType.ERROR_RUNTIME,
+                                ioe.getMessage());
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return new Result(ResultType.ERROR_RUNTIME,
+                                "Interrupted");
+                    } catch (ExecutionException ee) {
+                        return new Result(ResultType.ERROR_RUNTIME,
+                                ee.getCause().toString());
+                    }
+                }
+
+                @Override
+                public String mkOutput(Result res) {
+                    return walker.mkOutput(res);
+                }
+            }, filenames);
+        }
+    }
+    /**
+     * Evaluate the given files in turn, a statement at a time as each is read
+     * (see StatementStream), printing each file's result.  The statements are
+     * read on the calling thread, and each is evaluated by the render thread,
+     * after any render in progress has been cancelled.
+     * @param renders The executor of the evaluator's renders
+     * @param evaluator The evaluator
+     * @param state The state in which the files are evaluated
+     * @param filenames The files ('-' for stdin; stdin if there are none)
+     * @param show What shows a copy of the path drawn, on the event thread
+     */
+    private static void streamFiles(RenderExecutor renders,
+            FractalEvaluator evaluator, FractalState state,
+            List<String> filenames, Consumer<GeneralPath> show) {
+        for (String name : filenames.isEmpty() ? List.of("-") : filenames) {
+            Reader in = null;
+            try {
+                in = name.equals("-") ? new InputStreamReader(System.in)
+                        : new BufferedReader(new FileReader(name));
+                StatementStream statements = new StatementStream(in);
+                FractalPoint result = FractalPoint.ORIGIN;
+                long shown = System.nanoTime();
+                while (statements.hasNext()) {
+                    ASTStatement statement = statements.next();
+                    // (the path is copied to be shown at most every
+                    // SHOW_INTERVAL, since the program may be very long)
+                    boolean due = System.nanoTime() - shown > SHOW_INTERVAL;
+                    FractalValue value = renders.submit(() -> {
+                        FractalValue v = statement.visit(evaluator, state);
+                        if (due) {
+                            publish(state, show);
+                        }
+                        return v;
+                    }, null).get();
+                    result = evaluator.combine(result, value);
+                    if (due) {
+                        shown = System.nanoTime();
+                    }
+                }
+                FractalPoint total = result;
+                renders.submit(() -> {
+                    FractalEvaluator.printSummary(state);
+                    System.out.println("Result: " + total);
+                    publish(state, show);
+                    return null;
+                }, null).get();
+            } catch (IOException | FractalException e) {
+                System.err.println(e.getMessage());
+            } catch (ExecutionException ee) {
+                System.err.println(ee.getCause().getMessage());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                if (in != null && !name.equals("-")) {
+                    try {
+                        in.close();
+                    } catch (IOException ioe) {
+                        // nothing more to read from it anyway
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Take a copy of the path drawn so far in the given state, so that it can
+     * be shown while more is drawn.  It must be called on the render thread.
+     */
+    private static GeneralPath snapshot(FractalState state) {
+        return new GeneralPath(state.getSegments().asShape());
+    }
+
+    /**
+     * Show a copy of the path drawn so far in the given state, once the event
+     * thread is free.  It must be called on the render thread.
+     */
+    private static void publish(FractalState state, Consumer<GeneralPath> show) {
+        GeneralPath drawn = snapshot(state);
+        java.awt.EventQueue.invokeLater(() -> show.accept(drawn));
+    }
+    
+    /**
+     * Create the evaluator with the given name.
+     * @param name The name of the engine (as given on the command line)
+     * @return The evaluator, or null if the name is not recognised
+     */
+    public static FractalEvaluator mkEvaluator(String name) {
+        switch (name) {
+            case "recursive":
+                return new FractalEvaluator();
+            case "iterative":
+                return new IterativeFractalEvaluator();
+            case "parallel":
+                return new ParallelFractalEvaluator();
+            case "template":
+                return new TemplateFractalEvaluator();
+            case "retained":
+                return new RetainedFractalEvaluator();
+            default:
+                return null;
+        }
     }
     
     private static  float getResolution(GraphingPanel canvas) {
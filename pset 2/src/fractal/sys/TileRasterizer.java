@@ -0,0 +1,376 @@
+package fractal.sys;
+
+import fractal.semantics.SegmentSink;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import javax.imageio.ImageIO;
+
+/**
+ * A headless renderer of the segments drawn by a fractal, which produces an
+ * image (and PNG files) without any use of the GUI.  It is a SegmentSink, so
+ * it is installed on an evaluator (or a state) like any other sink.
+ *
+ * The image is divided into square tiles.  Each segment received is mapped to
+ * pixel coordinates and put in the bin of every tile that it might touch.
+ * When a bin fills up, its segments are drawn on the tile's own ARGB buffer by
+ * a pool of threads while evaluation continues, so the segments never
+ * accumulate, and the drawing of different tiles proceeds in parallel.  (The
+ * segments of any one tile are drawn one bin at a time, in order.)  Calling
+ * finish draws whatever remains in the bins, and assembles the tiles into a
+ * single image.
+ *
+ * The line width, colours and antialiasing must be set before any segments
+ * are drawn.
+ *
+ * @author newts
+ */
+public class TileRasterizer implements SegmentSink {
+
+    /** The default width and height of a tile, in pixels */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /** The number of segments a bin holds before it is drawn */
+    static final int BIN_SIZE = 1 << 13;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int cols;
+    private final AffineTransform toPixels;
+    private final ExecutorService pool;
+    private final Tile[] tiles;
+    /** limits the number of full bins waiting to be drawn */
+    private final Semaphore inFlight;
+    private final double[] ends;
+
+    private float lineWidth;
+    private boolean antialias;
+    private Color colour;
+    private Color background;
+
+    /**
+     * Create a rasteriser for an image of the given size, that draws with the
+     * common ForkJoinPool.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param toPixels The transform from screen coordinates to pixels (see
+     * viewport)
+     */
+    public TileRasterizer(int width, int height, AffineTransform toPixels) {
+        this(width, height, toPixels, DEFAULT_TILE_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a rasteriser for an image of the given size.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param toPixels The transform from screen coordinates to pixels
+     * @param tileSize The width and height of a tile, in pixels
+     * @param pool The threads with which to draw the tiles
+     */
+    public TileRasterizer(int width, int height, AffineTransform toPixels,
+            int tileSize, ExecutorService pool) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.cols = (width + tileSize - 1) / tileSize;
+        int rows = (height + tileSize - 1) / tileSize;
+        this.toPixels = new AffineTransform(toPixels);
+        this.pool = pool;
+        this.tiles = new Tile[cols * rows];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int x = c * tileSize;
+                int y = r * tileSize;
+                tiles[r * cols + c] = new Tile(x, y, Math.min(tileSize, width - x),
+                        Math.min(tileSize, height - y));
+            }
+        }
+        int threads = pool instanceof ForkJoinPool fj ? fj.getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        this.inFlight = new Semaphore(4 * threads);
+        this.ends = new double[4];
+        this.lineWidth = 1;
+        this.antialias = true;
+        this.colour = Color.BLACK;
+        this.background = null;
+    }
+
+    /**
+     * Make the transform that maps the given rectangle of screen coordinates
+     * (with y increasing upwards) onto an image of the given size (with y
+     * increasing downwards), as a GraphingPanel would display it.
+     * @param xlo The screen x-coordinate at the left edge of the image
+     * @param ylo The screen y-coordinate at the bottom edge of the image
+     * @param xhi The screen x-coordinate at the right edge of the image
+     * @param yhi The screen y-coordinate at the top edge of the image
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @return The transform from screen coordinates to pixels
+     */
+    public static AffineTransform viewport(double xlo, double ylo, double xhi,
+            double yhi, int width, int height) {
+        double sx = width / (xhi - xlo);
+        double sy = height / (yhi - ylo);
+        return new AffineTransform(sx, 0, 0, -sy, -xlo * sx, yhi * sy);
+    }
+
+    /**
+     * @param lineWidth The width of the lines drawn, in pixels
+     */
+    public void setLineWidth(float lineWidth) {
+        this.lineWidth = lineWidth;
+    }
+
+    /**
+     * Find the region of screen coordinates in which drawing might mark the
+     * image: the image's own region, widened by the reach of a line beyond
+     * its ends (as for the tiles in lineTo).  An evaluator need draw nothing
+     * that lies wholly outside it (see FractalState.setViewport).
+     * @return The region, as {xlo, ylo, xhi, yhi}
+     */
+    public double[] getReach() {
+        double pad = lineWidth / 2 + 1;
+        double[] corners = {-pad, -pad, width + pad, height + pad};
+        try {
+            toPixels.inverseTransform(corners, 0, corners, 0, 2);
+        } catch (NoninvertibleTransformException nte) {
+            // (the image has no region) so cull nothing
+            return new double[]{Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        }
+        return new double[]{Math.min(corners[0], corners[2]),
+            Math.min(corners[1], corners[3]), Math.max(corners[0], corners[2]),
+            Math.max(corners[1], corners[3])};
+    }
+
+    /**
+     * @param antialias true if lines should be antialiased
+     */
+    public void setAntialiasing(boolean antialias) {
+        this.antialias = antialias;
+    }
+
+    /**
+     * @param colour The colour in which lines are drawn
+     */
+    public void setColour(Color colour) {
+        this.colour = colour;
+    }
+
+    /**
+     * @param background The colour of the background, or null if it should be
+     * transparent
+     */
+    public void setBackground(Color background) {
+        this.background = background;
+    }
+
+    @Override
+    public void moveTo(float x, float y) {
+        // nothing is drawn
+    }
+
+    @Override
+    public void lineTo(float x0, float y0, float x1, float y1) {
+        ends[0] = x0;
+        ends[1] = y0;
+        ends[2] = x1;
+        ends[3] = y1;
+        toPixels.transform(ends, 0, ends, 0, 2);
+        // the pixels that an (antialiased) line might touch
+        double pad = lineWidth / 2 + 1;
+        double xmin = Math.min(ends[0], ends[2]) - pad;
+        double xmax = Math.max(ends[0], ends[2]) + pad;
+        double ymin = Math.min(ends[1], ends[3]) - pad;
+        double ymax = Math.max(ends[1], ends[3]) + pad;
+        if (!(xmax >= 0 && ymax >= 0 && xmin < width && ymin < height)) {
+            // off the image (or not a number)
+            return;
+        }
+        int c0 = (int) Math.max(0, xmin / tileSize);
+        int c1 = (int) Math.min(cols - 1, xmax / tileSize);
+        int r0 = (int) Math.max(0, ymin / tileSize);
+        int r1 = (int) Math.min(tiles.length / cols - 1, ymax / tileSize);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                tiles[r * cols + c].add((float) ends[0], (float) ends[1],
+                        (float) ends[2], (float) ends[3]);
+            }
+        }
+    }
+
+    /**
+     * Discard everything drawn so far.
+     */
+    @Override
+    public void clear() {
+        for (Tile tile : tiles) {
+            tile.await();
+            tile.bin = null;
+            tile.n = 0;
+            tile.image = null;
+        }
+    }
+
+    /**
+     * Draw all the segments received so far, and return the resulting image.
+     * More segments may be drawn afterwards, and finish called again.
+     * @return The image
+     */
+    public BufferedImage finish() {
+        for (Tile tile : tiles) {
+            tile.flush();
+        }
+        BufferedImage result = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        int[] dst = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        int bg = background == null ? 0 : background.getRGB();
+        for (Tile tile : tiles) {
+            tile.await();
+            int[] src = tile.image == null ? null
+                    : ((DataBufferInt) tile.image.getRaster().getDataBuffer()).getData();
+            for (int row = 0; row < tile.h; row++) {
+                int start = (tile.y + row) * width + tile.x;
+                if (src == null) {
+                    Arrays.fill(dst, start, start + tile.w, bg);
+                } else {
+                    System.arraycopy(src, row * tile.w, dst, start, tile.w);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Draw all the segments received so far (see finish), and write the
+     * resulting image to the given file as a PNG.
+     * @param file The file to be written
+     * @throws IOException if the file cannot be written
+     */
+    public void writePng(Path file) throws IOException {
+        if (!ImageIO.write(finish(), "png", file.toFile())) {
+            throw new IOException("No PNG writer is available");
+        }
+    }
+
+    /**
+     * A rectangle of the image, the bin of segments waiting to be drawn on it,
+     * and (once anything has been drawn on it) its pixels.
+     */
+    private class Tile {
+        final int x;
+        final int y;
+        final int w;
+        final int h;
+        float[] bin;
+        int n;
+        BufferedImage image;
+        /** completes when every bin handed off so far has been drawn */
+        CompletableFuture<Void> pending;
+
+        Tile(int x, int y, int w, int h) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.pending = CompletableFuture.completedFuture(null);
+        }
+
+        void add(float x0, float y0, float x1, float y1) {
+            if (bin == null) {
+                bin = new float[4 * BIN_SIZE];
+            }
+            bin[n++] = x0;
+            bin[n++] = y0;
+            bin[n++] = x1;
+            bin[n++] = y1;
+            if (n == bin.length) {
+                flush();
+            }
+        }
+
+        /**
+         * Hand the bin to the pool to be drawn.
+         */
+        void flush() {
+            if (n == 0) {
+                return;
+            }
+            float[] segs = bin;
+            int count = n;
+            bin = null;
+            n = 0;
+            inFlight.acquireUninterruptibly();
+            pending = pending.thenRunAsync(() -> {
+                try {
+                    draw(segs, count);
+                } finally {
+                    inFlight.release();
+                }
+            }, pool);
+        }
+
+        void await() {
+            try {
+                pending.join();
+            } catch (CompletionException ce) {
+                if (ce.getCause() instanceof RuntimeException re) {
+                    throw re;
+                }
+                throw ce;
+            }
+        }
+
+        private void draw(float[] segs, int count) {
+            if (image == null) {
+                image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+                if (background != null) {
+                    Arrays.fill(((DataBufferInt) image.getRaster()
+                            .getDataBuffer()).getData(), background.getRGB());
+                }
+            }
+            Path2D.Float lines = new Path2D.Float(Path2D.WIND_NON_ZERO, count / 2);
+            float px = Float.NaN;
+            float py = Float.NaN;
+            for (int i = 0; i < count; i += 4) {
+                if (segs[i] != px || segs[i + 1] != py) {
+                    lines.moveTo(segs[i], segs[i + 1]);
+                }
+                px = segs[i + 2];
+                py = segs[i + 3];
+                lines.lineTo(px, py);
+            }
+            Graphics2D g = image.createGraphics();
+            try {
+                g.translate(-x, -y);
+                g.setColor(colour);
+                g.setStroke(new BasicStroke(lineWidth, BasicStroke.CAP_ROUND,
+                        BasicStroke.JOIN_ROUND));
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialias
+                        ? RenderingHints.VALUE_ANTIALIAS_ON
+                        : RenderingHints.VALUE_ANTIALIAS_OFF);
+                g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                        RenderingHints.VALUE_STROKE_PURE);
+                g.draw(lines);
+            } finally {
+                g.dispose();
+            }
+        }
+    }
+}
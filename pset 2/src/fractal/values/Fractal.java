@@ -4,6 +4,7 @@
  */
 package fractal.values;
 
+import fractal.semantics.FractalBound;
 import fractal.semantics.FractalState;
 import fractal.syntax.ASTStmtSequence;
 
@@ -16,6 +17,7 @@ public class Fractal extends FractalValue {
     String name;
     FractalState state;
     ASTStmtSequence body;
+    FractalBound bound;
     // double scaleVal;
     
     public Fractal(String name, ASTStmtSequence body, FractalState st) {
@@ -54,6 +56,23 @@ public class Fractal extends FractalValue {
         return state;
     }
     
+    /**
+     *
+     * @return The bound on what this fractal draws in its own frame, as last
+     * set (null if it has none, or it has not been computed)
+     */
+    public FractalBound getBound() {
+        return bound;
+    }
+
+    /**
+     * Record the bound on what this fractal draws in its own frame.
+     * @param bound The bound (null if there is none)
+     */
+    public void setBound(FractalBound bound) {
+        this.bound = bound;
+    }
+
     @Override
     public String toString() {
         return String.format("<Fractal %s>", name);
@@ -0,0 +1,236 @@
+package fractal.values;
+
+/**
+ * The primitive arithmetic of FRACTAL values, on unboxed numbers and
+ * coordinates.  These are the kernels of the operations of the FractalValue
+ * classes, and evaluators that keep values in primitive registers (see
+ * fractal.semantics.RegisterEvaluator) call them directly, so that both
+ * compute exactly the same values.
+ *
+ * Points are in single precision: the coordinates of a point result are
+ * stored in the first two elements of the given destination array, which may
+ * be the array holding an operand.
+ *
+ * @author newts
+ */
+public final class FractalArithmetic {
+
+    private FractalArithmetic() {
+    }
+
+    /**
+     *
+     * @return The sum of the given integers
+     */
+    public static int add(int a, int b) {
+        return a + b;
+    }
+
+    /**
+     *
+     * @return The sum of the given reals
+     */
+    public static double add(double a, double b) {
+        return a + b;
+    }
+
+    /**
+     *
+     * @return The difference of the given integers
+     */
+    public static int sub(int a, int b) {
+        return a - b;
+    }
+
+    /**
+     *
+     * @return The difference of the given reals
+     */
+    public static double sub(double a, double b) {
+        return a - b;
+    }
+
+    /**
+     *
+     * @return The product of the given integers
+     */
+    public static int mul(int a, int b) {
+        return a * b;
+    }
+
+    /**
+     *
+     * @return The product of an integer (as a real) and a real
+     */
+    public static double mul(double a, double b) {
+        return a * b;
+    }
+
+    /**
+     * The "product" of a real and a number, which FRACTAL has always taken to
+     * be their quotient.
+     * @return The quotient of the given reals
+     */
+    public static double realMul(double a, double b) {
+        return a / b;
+    }
+
+    /**
+     *
+     * @return The quotient of the given numbers (always a real)
+     */
+    public static double div(double a, double b) {
+        return a / b;
+    }
+
+    /**
+     *
+     * @return The remainder of the given integers
+     */
+    public static int mod(int a, int b) {
+        return a % b;
+    }
+
+    /**
+     *
+     * @return The remainder of the given reals
+     */
+    public static double mod(double a, double b) {
+        return a % b;
+    }
+
+    /**
+     *
+     * @return The negation of the given integer
+     */
+    public static int negate(int a) {
+        return -a;
+    }
+
+    /**
+     *
+     * @return The negation of the given real
+     */
+    public static double negate(double a) {
+        return -a;
+    }
+
+    /**
+     * Negate the point (x, y).
+     */
+    public static void negate(float x, float y, float[] dst) {
+        dst[0] = -x;
+        dst[1] = -y;
+    }
+
+    /**
+     * Find the vector sum of the points (x1, y1) and (x2, y2).
+     */
+    public static void add(float x1, float y1, float x2, float y2, float[] dst) {
+        dst[0] = x1 + x2;
+        dst[1] = y1 + y2;
+    }
+
+    /**
+     * Find the vector difference of the points (x1, y1) and (x2, y2).
+     */
+    public static void sub(float x1, float y1, float x2, float y2, float[] dst) {
+        dst[0] = x1 - x2;
+        dst[1] = y1 - y2;
+    }
+
+    /**
+     * Find the product of the points (x1, y1) and (x2, y2): the first rotated
+     * by the angle of the second, and scaled by its magnitude.
+     */
+    public static void mul(float x1, float y1, float x2, float y2, float[] dst) {
+        float px = x1 * x2 - y1 * y2;
+        dst[1] = x1 * y2 + y1 * x2;
+        dst[0] = px;
+    }
+
+    /**
+     * Find the quotient of the points (x1, y1) and (x2, y2): the first rotated
+     * clockwise by the angle of the second.
+     */
+    public static void div(float x1, float y1, float x2, float y2, float[] dst) {
+        invert(x2, y2, dst);
+        mul(x1, y1, dst[0], dst[1], dst);
+    }
+
+    /**
+     * Find the unit point at the angle of the point (x, y), reflected in the
+     * X-axis (the inverse of its rotation).
+     */
+    public static void invert(float x, float y, float[] dst) {
+        double m = magnitude(x, y);
+        dst[0] = (float) (x / m);
+        dst[1] = -(float) (y / m);
+    }
+
+    /**
+     * Find the modulo of the points (x1, y1) and (x2, y2): the first less its
+     * projection onto the second.
+     */
+    public static void mod(float x1, float y1, float x2, float y2, float[] dst) {
+        float s = projScale(x1, y1, x2, y2);
+        sub(x1, y1, s * x2, s * y2, dst);
+    }
+
+    /**
+     * Find the projection of the point (x1, y1) onto the direction of the
+     * point (x2, y2).
+     */
+    public static void proj(float x1, float y1, float x2, float y2, float[] dst) {
+        float s = projScale(x1, y1, x2, y2);
+        dst[0] = s * x2;
+        dst[1] = s * y2;
+    }
+
+    private static float projScale(float x1, float y1, float x2, float y2) {
+        double proj = x1 * x2 + y1 * y2;
+        return (float) (proj / magnitude(x2, y2));
+    }
+
+    /**
+     * Scale the point (x, y) by the given number (about the origin).
+     */
+    public static void scale(float x, float y, double sf, float[] dst) {
+        float s = (float) sf;
+        dst[0] = s * x;
+        dst[1] = s * y;
+    }
+
+    /**
+     * Scale the point (x, y) by the reciprocal of the given number.
+     */
+    public static void divide(float x, float y, double d, float[] dst) {
+        scale(x, y, 1 / d, dst);
+    }
+
+    /**
+     * Find the remainders of the coordinates of the point (x, y) by the given
+     * integer.
+     */
+    public static void mod(float x, float y, int divisor, float[] dst) {
+        dst[0] = x % divisor;
+        dst[1] = y % divisor;
+    }
+
+    /**
+     * Find the unit point at the given angle (in radians) anticlockwise from
+     * the X-axis.
+     */
+    public static void rotation(double angle, float[] dst) {
+        dst[0] = (float) Math.cos(angle);
+        dst[1] = (float) Math.sin(angle);
+    }
+
+    /**
+     *
+     * @return The magnitude of the point (x, y)
+     */
+    public static double magnitude(float x, float y) {
+        return Math.sqrt(x * x + y * y);
+    }
+}
@@ -36,7 +36,7 @@ public class FractalInt extends FractalValue {
     
     @Override
     public FractalValue negate() {
-        return FractalValue.make(- value);
+        return FractalValue.make(FractalArithmetic.negate(value));
     }
     
     @Override
@@ -44,9 +44,9 @@ public class FractalInt extends FractalValue {
         if (! val.isNumber()) {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         } else if (val.isInt()) {
-            return new FractalInt(intValue() + val.intValue());
+            return new FractalInt(FractalArithmetic.add(intValue(), val.intValue()));
         } else {
-            return new FractalReal(realValue() + val.realValue());
+            return new FractalReal(FractalArithmetic.add(realValue(), val.realValue()));
         }
     }
     
@@ -55,9 +55,9 @@ public class FractalInt extends FractalValue {
         if (! val.isNumber()) {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         } else if (val.isInt()) {
-            return new FractalInt(intValue() - val.intValue());
+            return new FractalInt(FractalArithmetic.sub(intValue(), val.intValue()));
         } else {
-            return new FractalReal(realValue() - val.realValue());
+            return new FractalReal(FractalArithmetic.sub(realValue(), val.realValue()));
         }
     }
     @Override
@@ -65,9 +65,9 @@ public class FractalInt extends FractalValue {
         if (! val.isNumber()) {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         } else if (val.isInt()) {
-            return new FractalInt(intValue() * val.intValue());
+            return new FractalInt(FractalArithmetic.mul(intValue(), val.intValue()));
         } else {
-            return new FractalReal(realValue() * val.realValue());
+            return new FractalReal(FractalArithmetic.mul(realValue(), val.realValue()));
         }
     }
     @Override
@@ -75,7 +75,7 @@ public class FractalInt extends FractalValue {
         if (! val.isNumber()) {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         } else {
-            return new FractalReal(realValue() / val.realValue());
+            return new FractalReal(FractalArithmetic.div(realValue(), val.realValue()));
         }
     }
     
@@ -84,9 +84,9 @@ public class FractalInt extends FractalValue {
         if (! val.isNumber()) {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         } else if (val.isInt()) {
-            return new FractalInt(intValue() % val.intValue());
+            return new FractalInt(FractalArithmetic.mod(intValue(), val.intValue()));
         } else {
-            return new FractalReal(realValue() % val.realValue());
+            return new FractalReal(FractalArithmetic.mod(realValue(), val.realValue()));
         }
     }
     
@@ -71,7 +71,7 @@ public class FractalPoint extends FractalValue {
     }
     
     public double magnitude() {
-        return Math.sqrt(x * x + y * y);
+        return FractalArithmetic.magnitude(x, y);
     }
     
     /**
@@ -87,8 +87,9 @@ public class FractalPoint extends FractalValue {
     }
     
     public FractalPoint invert() {
-        double r = magnitude();
-        return new FractalPoint((float) (x/r), -(float) (y/r));
+        float[] xy = new float[2];
+        FractalArithmetic.invert(x, y, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
     
     /**
@@ -99,12 +100,16 @@ public class FractalPoint extends FractalValue {
      * this point.
      */
     public FractalPoint scale(float sf) {
-        return new FractalPoint(sf * x, sf * y);
+        float[] xy = new float[2];
+        FractalArithmetic.scale(x, y, sf, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
         
     @Override
     public FractalValue negate() {
-        return FractalValue.make(- x, -y);
+        float[] xy = new float[2];
+        FractalArithmetic.negate(x, y, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
     
     /**
@@ -124,7 +129,9 @@ public class FractalPoint extends FractalValue {
     }
     
     public FractalPoint add(FractalPoint pv) {
-        return new FractalPoint(x + pv.x, y + pv.y);
+        float[] xy = new float[2];
+        FractalArithmetic.add(x, y, pv.x, pv.y, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
     
     /**
@@ -144,7 +151,9 @@ public class FractalPoint extends FractalValue {
     }
     
     public FractalPoint sub(FractalPoint pv) {
-        return new FractalPoint(x - pv.x, y - pv.y);
+        float[] xy = new float[2];
+        FractalArithmetic.sub(x, y, pv.x, pv.y, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
     
     /**
@@ -164,15 +173,18 @@ public class FractalPoint extends FractalValue {
         if (val.isPoint()) {
             return mul(val.pointValue());
         } else if (val.isNumber()) {
-            float scale = (float) val.realValue();
-            return new FractalPoint(scale * x, scale * y);
+            float[] xy = new float[2];
+            FractalArithmetic.scale(x, y, val.realValue(), xy);
+            return new FractalPoint(xy[0], xy[1]);
         } else {
             return super.mul(val);
         }
     }
     
     public FractalPoint mul(FractalPoint pv) {
-        return new FractalPoint(x * pv.x - y * pv.y, x * pv.y + y * pv.x);
+        float[] xy = new float[2];
+        FractalArithmetic.mul(x, y, pv.x, pv.y, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
         
     /**
@@ -192,17 +204,18 @@ public class FractalPoint extends FractalValue {
         if (val.isPoint()) {
             return div(val.pointValue());
         } else if (val.isNumber()) {
-            float scale = (float) (1/val.realValue());
-            return new FractalPoint(scale * x, scale * y);
+            float[] xy = new float[2];
+            FractalArithmetic.divide(x, y, val.realValue(), xy);
+            return new FractalPoint(xy[0], xy[1]);
         } else {
             return super.mul(val);
         }
     }
     
     public FractalPoint div(FractalPoint pv) {
-        FractalPoint pvInv = pv.invert();            
-            return new FractalPoint(x * pvInv.x - y * pvInv.y, 
-                    x * pvInv.y + y * pvInv.x);
+        float[] xy = new float[2];
+        FractalArithmetic.div(x, y, pv.x, pv.y, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
     
     /**
@@ -224,15 +237,18 @@ public class FractalPoint extends FractalValue {
         if (val.isPoint()) {
             return mod(val.pointValue());
         } else if (val.isInt()) {
-            int divisor = val.intValue();
-            return new FractalPoint(x % divisor, y % divisor);
+            float[] xy = new float[2];
+            FractalArithmetic.mod(x, y, val.intValue(), xy);
+            return new FractalPoint(xy[0], xy[1]);
         } else {
             return super.mod(val);
         }
     }
     
     public FractalPoint mod(FractalPoint pv) {
-        return sub(proj(pv));
+        float[] xy = new float[2];
+        FractalArithmetic.mod(x, y, pv.x, pv.y, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
     
     /**
@@ -242,9 +258,20 @@ public class FractalPoint extends FractalValue {
      * @return The image of this point under the projection described.
      */
     public FractalPoint proj(FractalPoint pt) {
-        double proj = x * pt.x + y * pt.y;
-        float scale = (float) (proj/pt.magnitude());
-        return new FractalPoint(scale * pt.x, scale * pt.y);
+        float[] xy = new float[2];
+        FractalArithmetic.proj(x, y, pt.x, pt.y, xy);
+        return new FractalPoint(xy[0], xy[1]);
+    }
+    
+    /**
+     * Create the unit point at the given angle from the X-axis.
+     * @param angle The angle (in radians), measured anticlockwise
+     * @return The point (cos angle, sin angle)
+     */
+    public static FractalPoint rotation(double angle) {
+        float[] xy = new float[2];
+        FractalArithmetic.rotation(angle, xy);
+        return new FractalPoint(xy[0], xy[1]);
     }
 
 }
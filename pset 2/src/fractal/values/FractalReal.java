@@ -38,13 +38,13 @@ public class FractalReal extends FractalValue {
         
     @Override
     public FractalValue negate() {
-        return FractalValue.make(- value);
+        return FractalValue.make(FractalArithmetic.negate(value));
     }
     
     @Override
     public FractalValue add(FractalValue val) throws FractalException {
         if (val.isNumber()) {
-            return new FractalReal(realValue() + val.realValue());
+            return new FractalReal(FractalArithmetic.add(realValue(), val.realValue()));
         } else {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         }
@@ -53,7 +53,7 @@ public class FractalReal extends FractalValue {
     @Override
     public FractalValue sub(FractalValue val) throws FractalException {
         if (val.isNumber()) {
-            return new FractalReal(realValue() - val.realValue());
+            return new FractalReal(FractalArithmetic.sub(realValue(), val.realValue()));
         } else {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         }
@@ -62,7 +62,7 @@ public class FractalReal extends FractalValue {
     @Override
     public FractalValue mul(FractalValue val) throws FractalException {
         if (val.isNumber()) {
-            return new FractalReal(realValue() / val.realValue());
+            return new FractalReal(FractalArithmetic.realMul(realValue(), val.realValue()));
         } else {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         }
@@ -71,7 +71,7 @@ public class FractalReal extends FractalValue {
     @Override
     public FractalValue div(FractalValue val) throws FractalException {
         if (val.isNumber()) {
-            return new FractalReal(realValue() / val.realValue());
+            return new FractalReal(FractalArithmetic.div(realValue(), val.realValue()));
         } else {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         }
@@ -80,7 +80,7 @@ public class FractalReal extends FractalValue {
     @Override
     public FractalValue mod(FractalValue val) throws FractalException {
         if (val.isNumber()) {
-            return new FractalReal(realValue() % val.realValue());
+            return new FractalReal(FractalArithmetic.mod(realValue(), val.realValue()));
         } else {
             throw new FractalTypeException(FractalTypes.REAL, val.getType());
         }